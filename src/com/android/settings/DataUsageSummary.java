@@ -97,6 +97,7 @@ import android.text.format.Time;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -131,8 +132,10 @@ import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.DataUsageForecast;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -142,7 +145,7 @@ import com.android.settings.widget.PieChartView;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -190,6 +193,7 @@ public class DataUsageSummary extends Fragment {
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private final NetworkStatsCache mStatsCache = new NetworkStatsCache();
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -218,9 +222,12 @@ public class DataUsageSummary extends Fragment {
     private View mCycleView;
     private Spinner mCycleSpinner;
     private CycleAdapter mCycleAdapter;
+    private CycleTable mCycleTable;
 
     private ChartDataUsageView mChart;
     private TextView mUsageSummary;
+    /** Usage during the inspected range, shown ahead of any forecast. */
+    private String mUsageSummaryText;
     private TextView mEmpty;
 
     private View mAppDetail;
@@ -426,6 +433,9 @@ public class DataUsageSummary extends Fragment {
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
+
+                // new data may have been recorded; reload everything
+                mStatsCache.invalidate();
                 return null;
             }
 
@@ -560,6 +570,14 @@ public class DataUsageSummary extends Fragment {
         return false;
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        // write any policy edits still waiting to be coalesced
+        mPolicyEditor.flush();
+    }
+
     @Override
     public void onDestroy() {
         mDataEnabledView = null;
@@ -899,14 +917,14 @@ public class DataUsageSummary extends Fragment {
 
     private boolean getAppRestrictBackground() {
         final int uid = mCurrentApp.key;
-        final int uidPolicy = mPolicyManager.getUidPolicy(uid);
+        final int uidPolicy = mPolicyEditor.getUidPolicy(uid);
         return (uidPolicy & POLICY_REJECT_METERED_BACKGROUND) != 0;
     }
 
     private void setAppRestrictBackground(boolean restrictBackground) {
         if (LOGD) Log.d(TAG, "setAppRestrictBackground()");
         final int uid = mCurrentApp.key;
-        mPolicyManager.setUidPolicy(
+        mPolicyEditor.setUidPolicy(
                 uid, restrictBackground ? POLICY_REJECT_METERED_BACKGROUND : POLICY_NONE);
         mAppRestrict.setChecked(restrictBackground);
     }
@@ -947,6 +965,36 @@ public class DataUsageSummary extends Fragment {
             // generate cycle list based on policy and available history
             updateCycleList(policy);
         }
+
+        // warning and limit may have moved relative to the forecast
+        updateUsageSummary();
+    }
+
+    /**
+     * Show {@link #mUsageSummaryText}, followed by a note when usage of the
+     * current cycle is projected to reach its warning or limit.
+     */
+    private void updateUsageSummary() {
+        if (mUsageSummaryText == null) return;
+
+        final DataUsageForecast.Projection projection = mChart.getProjection();
+        int forecastRes = 0;
+        if (!isAppDetailMode() && projection != null) {
+            if (mChart.isLimitProjected()) {
+                forecastRes = R.string.data_usage_forecast_limit;
+            } else if (mChart.isWarningProjected()) {
+                forecastRes = R.string.data_usage_forecast_warning;
+            }
+        }
+
+        if (forecastRes != 0) {
+            final String projectedPhrase = Formatter.formatFileSize(
+                    getActivity(), projection.expected);
+            mUsageSummary.setText(mUsageSummaryText + "\n"
+                    + getString(forecastRes, projectedPhrase));
+        } else {
+            mUsageSummary.setText(mUsageSummaryText);
+        }
     }
 
     /**
@@ -974,16 +1022,12 @@ public class DataUsageSummary extends Fragment {
 
         boolean hasCycles = false;
         if (policy != null) {
-            // find the next cycle boundary
-            long cycleEnd = computeNextCycleBoundary(historyEnd, policy);
+            final CycleTable table = getCycleTable(policy, historyStart, historyEnd);
 
-            // walk backwards, generating all valid cycle ranges
-            while (cycleEnd > historyStart) {
-                final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
-                Log.d(TAG, "generating cs=" + cycleStart + " to ce=" + cycleEnd + " waiting for hs="
-                        + historyStart);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
-                cycleEnd = cycleStart;
+            // boundaries are newest first, covering all valid cycle ranges
+            final long[] boundaries = table.boundaries;
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                mCycleAdapter.add(new CycleItem(context, boundaries[i + 1], boundaries[i]));
                 hasCycles = true;
             }
 
@@ -1022,6 +1066,66 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    /**
+     * Return {@link CycleTable} for the given {@link NetworkPolicy} and
+     * history range, reusing the last one when its cycle definition and
+     * boundaries still match.
+     */
+    private CycleTable getCycleTable(NetworkPolicy policy, long historyStart, long historyEnd) {
+        // find the next cycle boundary
+        final long nextBoundary = computeNextCycleBoundary(historyEnd, policy);
+
+        final CycleTable cached = mCycleTable;
+        if (cached != null && cached.cycleDay == policy.cycleDay
+                && Objects.equal(cached.cycleTimezone, policy.cycleTimezone)
+                && cached.historyStart == historyStart && cached.nextBoundary == nextBoundary) {
+            return cached;
+        }
+
+        // walk backwards, generating all valid cycle ranges
+        long[] boundaries = new long[16];
+        int count = 0;
+        long cycleEnd = nextBoundary;
+        boundaries[count++] = cycleEnd;
+        while (cycleEnd > historyStart) {
+            final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
+            if (LOGD) {
+                Log.d(TAG, "generating cs=" + cycleStart + " to ce=" + cycleEnd
+                        + " waiting for hs=" + historyStart);
+            }
+            if (count == boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, count * 2);
+            }
+            boundaries[count++] = cycleStart;
+            cycleEnd = cycleStart;
+        }
+
+        mCycleTable = new CycleTable(policy, historyStart, nextBoundary,
+                Arrays.copyOf(boundaries, count));
+        return mCycleTable;
+    }
+
+    /**
+     * Cycle boundaries of a {@link NetworkPolicy} back to the start of
+     * available history, newest first.
+     */
+    private static class CycleTable {
+        final int cycleDay;
+        final String cycleTimezone;
+        final long historyStart;
+        final long nextBoundary;
+        final long[] boundaries;
+
+        CycleTable(NetworkPolicy policy, long historyStart, long nextBoundary,
+                long[] boundaries) {
+            this.cycleDay = policy.cycleDay;
+            this.cycleTimezone = policy.cycleTimezone;
+            this.historyStart = historyStart;
+            this.nextBoundary = nextBoundary;
+            this.boundaries = boundaries;
+        }
+    }
+
     private OnCheckedChangeListener mDataEnabledListener = new OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -1190,7 +1294,8 @@ public class DataUsageSummary extends Fragment {
             summaryRes = R.string.data_usage_total_during_range;
         }
 
-        mUsageSummary.setText(getString(summaryRes, totalPhrase, rangePhrase));
+        mUsageSummaryText = getString(summaryRes, totalPhrase, rangePhrase);
+        updateUsageSummary();
 
         // initial layout is finished above, ensure we have transitions
         ensureLayoutTransitions();
@@ -1200,13 +1305,13 @@ public class DataUsageSummary extends Fragment {
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, mStatsCache, args);
         }
 
         @Override
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
             mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
+            mChart.bindNetworkStats(mChartData.network, mTemplate);
             mChart.bindDetailNetworkStats(mChartData.detail);
 
             // calcuate policy cycles based on available data
@@ -1231,12 +1336,13 @@ public class DataUsageSummary extends Fragment {
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, mStatsCache, args);
         }
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+            // include restrictions that haven't been written yet
+            final int[] restrictedUids = mPolicyEditor.getUidsWithPolicy(
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
             updateEmptyVisible();
@@ -1316,19 +1422,30 @@ public class DataUsageSummary extends Fragment {
         public long start;
         public long end;
 
+        /** Used to format {@link #label} once it's first shown. */
+        private Context mContext;
+
         CycleItem(CharSequence label) {
             this.label = label;
         }
 
         public CycleItem(Context context, long start, long end) {
-            this.label = formatDateRange(context, start, end);
+            mContext = context;
             this.start = start;
             this.end = end;
         }
 
+        public CharSequence getLabel() {
+            if (label == null) {
+                label = formatDateRange(mContext, start, end);
+                mContext = null;
+            }
+            return label;
+        }
+
         @Override
         public String toString() {
-            return label.toString();
+            return getLabel().toString();
         }
 
         @Override
@@ -1435,6 +1552,15 @@ public class DataUsageSummary extends Fragment {
             total = parcel.readLong();
         }
 
+        public AppItem(AppItem other) {
+            key = other.key;
+            restricted = other.restricted;
+            for (int i = 0; i < other.uids.size(); i++) {
+                uids.put(other.uids.keyAt(i), other.uids.valueAt(i));
+            }
+            total = other.total;
+        }
+
         public void addUid(int uid) {
             uids.put(uid, true);
         }
@@ -1476,7 +1602,20 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        /** Number of items ordered up front; the rest wait until scrolled to. */
+        private static final int TOP_ITEMS = 32;
+
+        // Aggregation state below is reused across binds, so that summaries
+        // with thousands of rows don't churn the heap on every cycle change.
+        private final SparseArray<AppItem> mItemPool = new SparseArray<AppItem>();
+        private final SparseIntArray mSlots = new SparseIntArray();
+        private AppItem[] mSlotItems = new AppItem[16];
+        private long[] mSlotTotals = new long[16];
+        /** Slots in display order, valid up to {@link #mSortedCount}. */
+        private int[] mOrder = new int[16];
+        private int mCount;
+        private int mSortedCount;
+
         private long mLargest;
 
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
@@ -1488,10 +1627,10 @@ public class DataUsageSummary extends Fragment {
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
+            mSlots.clear();
+            mCount = 0;
 
             final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
 
             NetworkStats.Entry entry = null;
             final int size = stats != null ? stats.size() : 0;
@@ -1502,10 +1641,11 @@ public class DataUsageSummary extends Fragment {
                 final int uid = entry.uid;
                 final int collapseKey;
                 if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
+                    final int userId = UserHandle.getUserId(uid);
+                    if (userId == currentUserId) {
                         collapseKey = uid;
                     } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
                     }
                 } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
                     collapseKey = uid;
@@ -1513,48 +1653,167 @@ public class DataUsageSummary extends Fragment {
                     collapseKey = android.os.Process.SYSTEM_UID;
                 }
 
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
+                final int slot = obtainSlot(collapseKey);
+                mSlotItems[slot].addUid(uid);
+                mSlotTotals[slot] += entry.rxBytes + entry.txBytes;
             }
 
             for (int uid : restrictedUids) {
                 // Only splice in restricted state for current user
                 if (UserHandle.getUserId(uid) != currentUserId) continue;
 
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
+                int slot = mSlots.get(uid, -1);
+                if (slot < 0) {
+                    slot = obtainSlot(uid);
+                    mSlotTotals[slot] = -1;
+                }
+                mSlotItems[slot].restricted = true;
+            }
+
+            mLargest = mCount > 0 ? Long.MIN_VALUE : 0;
+            for (int slot = 0; slot < mCount; slot++) {
+                mSlotItems[slot].total = mSlotTotals[slot];
+                mLargest = Math.max(mLargest, mSlotTotals[slot]);
+                mOrder[slot] = slot;
+            }
+
+            // load labels for every row in one pass before they're shown
+            if (mCount > 0) {
+                final int[] keys = new int[mCount];
+                for (int slot = 0; slot < mCount; slot++) {
+                    keys[slot] = mSlotItems[slot].key;
                 }
-                item.restricted = true;
+                mProvider.prefetchLabels(keys);
             }
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            // only order the items likely to be on screen right away
+            final int top = Math.min(TOP_ITEMS, mCount);
+            if (top < mCount) {
+                select(0, mCount - 1, top);
+            }
+            sort(0, top - 1);
+            mSortedCount = top;
+
             notifyDataSetChanged();
         }
 
+        /**
+         * Return the slot aggregating the given collapse key, reusing any
+         * {@link AppItem} created for that key by an earlier bind.
+         */
+        private int obtainSlot(int key) {
+            int slot = mSlots.get(key, -1);
+            if (slot >= 0) return slot;
+
+            slot = mCount++;
+            if (slot == mSlotItems.length) {
+                final int capacity = slot * 2;
+                mSlotItems = Arrays.copyOf(mSlotItems, capacity);
+                mSlotTotals = Arrays.copyOf(mSlotTotals, capacity);
+                mOrder = Arrays.copyOf(mOrder, capacity);
+            }
+
+            AppItem item = mItemPool.get(key);
+            if (item == null) {
+                item = new AppItem(key);
+                mItemPool.put(key, item);
+            } else {
+                item.uids.clear();
+                item.total = 0;
+                item.restricted = false;
+            }
+
+            mSlotItems[slot] = item;
+            mSlotTotals[slot] = 0;
+            mSlots.put(key, slot);
+            return slot;
+        }
+
+        /**
+         * Return true if the item in slot {@code a} is listed before the item
+         * in slot {@code b}: larger totals first, then in order of appearance.
+         */
+        private boolean isBefore(int a, int b) {
+            final long totalA = mSlotTotals[a];
+            final long totalB = mSlotTotals[b];
+            return totalA > totalB || (totalA == totalB && a < b);
+        }
+
+        private void swap(int i, int j) {
+            final int temp = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = temp;
+        }
+
+        /**
+         * Partition {@link #mOrder} between {@code lo} and {@code hi} around a
+         * pivot, returning the final position of that pivot.
+         */
+        private int partition(int lo, int hi) {
+            swap((lo + hi) >>> 1, hi);
+            final int pivot = mOrder[hi];
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (isBefore(mOrder[i], pivot)) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, hi);
+            return store;
+        }
+
+        /**
+         * Rearrange {@link #mOrder} so the first {@code k} positions hold the
+         * first {@code k} items, in no particular order.
+         */
+        private void select(int lo, int hi, int k) {
+            while (lo < hi) {
+                final int pivot = partition(lo, hi);
+                if (pivot == k) {
+                    return;
+                } else if (pivot < k) {
+                    lo = pivot + 1;
+                } else {
+                    hi = pivot - 1;
+                }
+            }
+        }
+
+        private void sort(int lo, int hi) {
+            while (lo < hi) {
+                final int pivot = partition(lo, hi);
+                // recurse into smaller half to bound stack depth
+                if (pivot - lo < hi - pivot) {
+                    sort(lo, pivot - 1);
+                    lo = pivot + 1;
+                } else {
+                    sort(pivot + 1, hi);
+                    hi = pivot - 1;
+                }
+            }
+        }
+
+        private AppItem getAppItem(int position) {
+            if (position >= mSortedCount) {
+                sort(mSortedCount, mCount - 1);
+                mSortedCount = mCount;
+            }
+            return mSlotItems[mOrder[position]];
+        }
+
         @Override
         public int getCount() {
-            return mItems.size();
+            return mCount;
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return getAppItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return getAppItem(position).key;
         }
 
         @Override
@@ -1575,7 +1834,7 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
-            final AppItem item = mItems.get(position);
+            final AppItem item = getAppItem(position);
             UidDetailTask.bindView(mProvider, item, convertView);
 
             if (item.restricted && item.total <= 0) {
@@ -1603,8 +1862,9 @@ public class DataUsageSummary extends Fragment {
         public static void show(DataUsageSummary parent, AppItem app, CharSequence label) {
             if (!parent.isAdded()) return;
 
+            // copy, since the adapter reuses its items on the next bind
             final Bundle args = new Bundle();
-            args.putParcelable(EXTRA_APP, app);
+            args.putParcelable(EXTRA_APP, new AppItem(app));
 
             final AppDetailsFragment fragment = new AppDetailsFragment();
             fragment.setArguments(args);
@@ -2135,33 +2395,35 @@ public class DataUsageSummary extends Fragment {
     }
 
     /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
+     * Binds {@link UidDetail} to {@link DataUsageAdapter} row item, showing
+     * any known label right away and the rest once loaded in background.
      */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
+    private static class UidDetailTask implements UidDetailProvider.Callback {
         private final View mTarget;
 
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
+        private UidDetailTask(View target) {
             mTarget = checkNotNull(target);
         }
 
         public static void bindView(
                 UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
-            }
-
             final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
             if (cachedDetail != null) {
+                target.setTag(null);
                 bindView(cachedDetail, target);
+                return;
+            }
+
+            // only the latest task bound to a recycled row may update it
+            final UidDetailTask task = new UidDetailTask(target);
+            target.setTag(task);
+
+            final UidDetail detail = provider.getUidDetail(item.key, task);
+            if (detail != null) {
+                target.setTag(null);
+                bindView(detail, target);
             } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
+                bindLabel(provider.getUidLabel(item.key), target);
             }
         }
 
@@ -2178,19 +2440,20 @@ public class DataUsageSummary extends Fragment {
             }
         }
 
-        @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
+        private static void bindLabel(CharSequence label, View target) {
+            final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
+            final TextView title = (TextView) target.findViewById(android.R.id.title);
 
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
+            icon.setImageDrawable(null);
+            title.setText(label);
         }
 
         @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
+        public void onUidDetailLoaded(int uid, UidDetail detail) {
+            if (mTarget.getTag() == this) {
+                mTarget.setTag(null);
+                bindView(detail, mTarget);
+            }
         }
     }
 
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Persistent copy of the expensive parts of {@link ApplicationsState.AppEntry}
+ * (label, sizes, mounted state and a downscaled icon), so that a new process
+ * can show a populated application list before the background loader has
+ * caught up.  Records are keyed by package name and only handed out while the
+ * package's lastUpdateTime still matches; everything else is loaded normally.
+ * <p>
+ * Saving is incremental: records of entries that haven't changed since the
+ * last save are written again as they are, so icons are only encoded when
+ * they are new, and packages whose entries weren't loaded this time keep
+ * their records.  Nothing is written when nothing changed.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    private static final int MAGIC = 0x41505045; // "APPE"
+    private static final int VERSION = 1;
+
+    static class Record {
+        String packageName;
+        long lastUpdateTime;
+        String label;
+        boolean mounted;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        byte[] iconData;
+
+        Drawable decodeIcon(Resources res) {
+            if (iconData == null) {
+                return null;
+            }
+            Bitmap bitmap = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
+            return bitmap != null ? new BitmapDrawable(res, bitmap) : null;
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    // Synchronize on 'this' for the following.
+    // Records not handed out yet.
+    private final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    // Everything on disk, written under mConfigKey.
+    private final HashMap<String, Record> mSaved = new HashMap<String, Record>();
+    private String mConfigKey;
+    private String mCurrentConfigKey;
+
+    AppEntrySnapshot(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Returns a key describing the parts of the configuration that labels and
+     * icons depend on.  A snapshot written under a different key is ignored.
+     */
+    static String buildConfigKey(Resources res) {
+        return res.getConfiguration().locale + "/" + res.getDisplayMetrics().densityDpi;
+    }
+
+    synchronized void setCurrentConfig(String configKey) {
+        mCurrentConfigKey = configKey;
+    }
+
+    /**
+     * Removes and returns the record for the given package if it is still
+     * valid for the installed version and current configuration.
+     */
+    synchronized Record take(ApplicationInfo info, boolean mounted) {
+        if (mRecords.isEmpty() || mConfigKey == null
+                || !mConfigKey.equals(mCurrentConfigKey)) {
+            return null;
+        }
+        Record rec = mRecords.remove(info.packageName);
+        if (rec == null) {
+            return null;
+        }
+        final long lastUpdateTime = getLastUpdateTime(info);
+        if (rec.lastUpdateTime != lastUpdateTime || rec.mounted != mounted) {
+            if (DEBUG) Log.i(TAG, "Stale snapshot of " + info.packageName);
+            return null;
+        }
+        return rec;
+    }
+
+    synchronized void clear() {
+        mRecords.clear();
+    }
+
+    /**
+     * Returns the record on disk for the given package if it was written
+     * under the given configuration, whether or not it was handed out.
+     */
+    synchronized Record getSaved(String configKey, String packageName) {
+        if (!configKey.equals(mConfigKey)) {
+            return null;
+        }
+        return mSaved.get(packageName);
+    }
+
+    synchronized int getSavedCount() {
+        return mSaved.size();
+    }
+
+    static long getLastUpdateTime(ApplicationInfo info) {
+        // ApplicationInfo does not carry the install time, so use the
+        // modification time of the apk as the version of its contents.
+        return new File(info.sourceDir).lastModified();
+    }
+
+    /**
+     * Returns a record describing the entry: the saved one if nothing it
+     * holds has changed, otherwise a new one.  The saved icon is reused
+     * while the package is the same version, and the entry's icon is only
+     * encoded when there is none to reuse.
+     */
+    static Record updateRecord(Record saved, ApplicationsState.AppEntry entry, Resources res,
+            int iconSize) {
+        final long lastUpdateTime = getLastUpdateTime(entry.info);
+        final boolean sameVersion = saved != null && saved.lastUpdateTime == lastUpdateTime;
+        final boolean iconKnown = sameVersion && (saved.iconData != null
+                || entry.icon == null || !entry.mounted);
+        if (sameVersion && iconKnown && saved.mounted == entry.mounted
+                && entry.label != null && entry.label.equals(saved.label)
+                && saved.size == entry.size
+                && saved.internalSize == entry.internalSize
+                && saved.externalSize == entry.externalSize
+                && saved.cacheSize == entry.cacheSize
+                && saved.codeSize == entry.codeSize
+                && saved.dataSize == entry.dataSize
+                && saved.externalCodeSize == entry.externalCodeSize
+                && saved.externalDataSize == entry.externalDataSize
+                && saved.externalCacheSize == entry.externalCacheSize) {
+            return saved;
+        }
+        final byte[] savedIcon = sameVersion && saved.mounted == entry.mounted
+                ? saved.iconData : null;
+        return createRecord(entry, lastUpdateTime, savedIcon, res, iconSize);
+    }
+
+    /**
+     * Returns true if the record was made from the installed version of the
+     * package.
+     */
+    static boolean isCurrent(Record rec, ApplicationInfo info) {
+        return rec.lastUpdateTime == getLastUpdateTime(info);
+    }
+
+    private static Record createRecord(ApplicationsState.AppEntry entry, long lastUpdateTime,
+            byte[] savedIcon, Resources res, int iconSize) {
+        Record rec = new Record();
+        rec.packageName = entry.info.packageName;
+        rec.lastUpdateTime = lastUpdateTime;
+        rec.label = entry.label;
+        rec.mounted = entry.mounted;
+        rec.size = entry.size;
+        rec.internalSize = entry.internalSize;
+        rec.externalSize = entry.externalSize;
+        rec.cacheSize = entry.cacheSize;
+        rec.codeSize = entry.codeSize;
+        rec.dataSize = entry.dataSize;
+        rec.externalCodeSize = entry.externalCodeSize;
+        rec.externalDataSize = entry.externalDataSize;
+        rec.externalCacheSize = entry.externalCacheSize;
+        if (savedIcon != null) {
+            rec.iconData = savedIcon;
+        } else if (entry.icon != null && entry.mounted) {
+            rec.iconData = encodeIcon(entry.icon, res, iconSize);
+        }
+        return rec;
+    }
+
+    private static byte[] encodeIcon(Drawable icon, Resources res, int iconSize) {
+        Bitmap bitmap;
+        if (icon instanceof BitmapDrawable) {
+            Bitmap src = ((BitmapDrawable) icon).getBitmap();
+            if (src == null) {
+                return null;
+            }
+            bitmap = src.getWidth() > iconSize || src.getHeight() > iconSize
+                    ? Bitmap.createScaledBitmap(src, iconSize, iconSize, true) : src;
+        } else {
+            // Draw a private copy so we never touch the bounds of a drawable
+            // that may currently be attached to a view on the main thread.
+            Drawable.ConstantState state = icon.getConstantState();
+            Drawable copy = state != null ? state.newDrawable(res) : null;
+            if (copy == null) {
+                return null;
+            }
+            bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+            copy.setBounds(0, 0, iconSize, iconSize);
+            copy.draw(new Canvas(bitmap));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Loads the snapshot from disk, replacing any records currently held.
+     * Called on the background loader thread.
+     */
+    void read() {
+        DataInputStream in = null;
+        HashMap<String, Record> records = new HashMap<String, Record>();
+        String configKey = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            configKey = in.readUTF();
+            final int N = in.readInt();
+            for (int i=0; i<N; i++) {
+                Record rec = new Record();
+                rec.packageName = in.readUTF();
+                rec.lastUpdateTime = in.readLong();
+                rec.label = in.readUTF();
+                rec.mounted = in.readBoolean();
+                rec.size = in.readLong();
+                rec.internalSize = in.readLong();
+                rec.externalSize = in.readLong();
+                rec.cacheSize = in.readLong();
+                rec.codeSize = in.readLong();
+                rec.dataSize = in.readLong();
+                rec.externalCodeSize = in.readLong();
+                rec.externalDataSize = in.readLong();
+                rec.externalCacheSize = in.readLong();
+                final int iconLen = in.readInt();
+                if (iconLen > 0) {
+                    rec.iconData = new byte[iconLen];
+                    in.readFully(rec.iconData);
+                }
+                records.put(rec.packageName, rec);
+            }
+        } catch (FileNotFoundException e) {
+            // No snapshot yet.
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Read " + records.size() + " records for " + configKey);
+        synchronized (this) {
+            mConfigKey = configKey;
+            mRecords.clear();
+            mRecords.putAll(records);
+            mSaved.clear();
+            mSaved.putAll(records);
+        }
+    }
+
+    /**
+     * Replaces the on-disk snapshot with the given records.  Called on the
+     * background loader thread.
+     */
+    void write(String configKey, ArrayList<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(configKey);
+            out.writeInt(records.size());
+            for (int i=0; i<records.size(); i++) {
+                Record rec = records.get(i);
+                out.writeUTF(rec.packageName);
+                out.writeLong(rec.lastUpdateTime);
+                out.writeUTF(rec.label != null ? rec.label : rec.packageName);
+                out.writeBoolean(rec.mounted);
+                out.writeLong(rec.size);
+                out.writeLong(rec.internalSize);
+                out.writeLong(rec.externalSize);
+                out.writeLong(rec.cacheSize);
+                out.writeLong(rec.codeSize);
+                out.writeLong(rec.dataSize);
+                out.writeLong(rec.externalCodeSize);
+                out.writeLong(rec.externalDataSize);
+                out.writeLong(rec.externalCacheSize);
+                if (rec.iconData != null) {
+                    out.writeInt(rec.iconData.length);
+                    out.write(rec.iconData);
+                } else {
+                    out.writeInt(0);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote " + records.size() + " records for " + configKey);
+            synchronized (this) {
+                mConfigKey = configKey;
+                mSaved.clear();
+                for (int i=0; i<records.size(); i++) {
+                    mSaved.put(records.get(i).packageName, records.get(i));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
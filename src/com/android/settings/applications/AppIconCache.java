@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+/**
+ * Keeps the icons of recently bound {@link AppEntry} objects within a fixed
+ * memory budget.  When an icon is evicted it is cleared from its entry, so
+ * that it is loaded again the next time the entry is shown.
+ * <p>
+ * Eviction takes the lock of the evicted entry, so this must not be called
+ * while holding the lock of any entry.
+ */
+class AppIconCache {
+    private final LruCache<AppEntry, Drawable> mCache;
+    // Size of the last icon put, as an estimate of the next one.
+    private int mLastIconBytes;
+
+    AppIconCache(int maxBytes) {
+        mCache = new LruCache<AppEntry, Drawable>(maxBytes) {
+            @Override
+            protected int sizeOf(AppEntry entry, Drawable icon) {
+                return getByteCount(icon);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, AppEntry entry, Drawable oldIcon,
+                    Drawable newIcon) {
+                if (evicted) {
+                    synchronized (entry) {
+                        if (entry.icon == oldIcon) {
+                            entry.icon = null;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        // Assume a 32-bit bitmap of the drawable's size.
+        return Math.max(1, icon.getIntrinsicWidth() * icon.getIntrinsicHeight() * 4);
+    }
+
+    /**
+     * Returns the cached icon of the entry, marking it as the most
+     * recently used one, or null if it needs to be loaded.
+     */
+    Drawable get(AppEntry entry) {
+        return mCache.get(entry);
+    }
+
+    void put(AppEntry entry, Drawable icon) {
+        if (icon != null) {
+            mLastIconBytes = getByteCount(icon);
+            mCache.put(entry, icon);
+        }
+    }
+
+    void remove(AppEntry entry) {
+        mCache.remove(entry);
+    }
+
+    void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns true once another icon like the last one would take the cache
+     * over its budget, at which point loading more icons ahead of time would
+     * only evict others.  The cache never actually stays over budget, so
+     * comparing its size alone doesn't work.
+     */
+    boolean isFull() {
+        return mCache.size() + mLastIconBytes > mCache.maxSize();
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "AppIconCache{" + mCache.size() + "/" + mCache.maxSize() + " bytes, hits="
+                + mCache.hitCount() + " misses=" + mCache.missCount()
+                + " evictions=" + mCache.evictionCount() + "}";
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * N-gram index over the normalized labels and package names of all
+ * {@link AppEntry} objects, used to filter the application list without
+ * scanning every entry on each keystroke.
+ *
+ * <p>A label matches a query if the query starts one of its words, which is
+ * what the list filter has always done; a package name matches if the query
+ * starts one of its dot separated segments.  Every trigram of each indexed
+ * string is a key, as are the one and two character prefixes of each word,
+ * so any query narrows down to the entries of its rarest key before the
+ * candidates are checked.
+ */
+class AppSearchIndex {
+    private static final int GRAM = 3;
+    // Marks the short keys that only exist at the start of a word.
+    private static final char WORD_START = '\u0001';
+
+    private final HashMap<String, HashSet<AppEntry>> mPostings
+            = new HashMap<String, HashSet<AppEntry>>();
+    private final HashMap<AppEntry, String[]> mKeys = new HashMap<AppEntry, String[]>();
+
+    synchronized void add(AppEntry entry) {
+        remove(entry);
+        HashSet<String> keys = new HashSet<String>();
+        addKeys(keys, entry.getNormalizedLabel(), ' ');
+        addKeys(keys, entry.info.packageName.toLowerCase(), '.');
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        mKeys.put(entry, keyArray);
+        for (String key : keyArray) {
+            HashSet<AppEntry> posting = mPostings.get(key);
+            if (posting == null) {
+                posting = new HashSet<AppEntry>();
+                mPostings.put(key, posting);
+            }
+            posting.add(entry);
+        }
+    }
+
+    synchronized void remove(AppEntry entry) {
+        String[] keys = mKeys.remove(entry);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            HashSet<AppEntry> posting = mPostings.get(key);
+            if (posting != null) {
+                posting.remove(entry);
+                if (posting.isEmpty()) {
+                    mPostings.remove(key);
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mPostings.clear();
+        mKeys.clear();
+    }
+
+    private static void addKeys(HashSet<String> keys, String str, char separator) {
+        final int N = str.length();
+        for (int i=0; i<N; i++) {
+            if (i == 0 || str.charAt(i-1) == separator) {
+                keys.add(WORD_START + str.substring(i, Math.min(N, i+1)));
+                if (i+2 <= N) {
+                    keys.add(WORD_START + str.substring(i, i+2));
+                }
+            }
+            if (i+GRAM <= N) {
+                keys.add(str.substring(i, i+GRAM));
+            }
+        }
+    }
+
+    /**
+     * Returns the indexed entries whose label or package name matches the
+     * already normalized query.
+     */
+    synchronized HashSet<AppEntry> query(String normalizedQuery) {
+        HashSet<AppEntry> result = new HashSet<AppEntry>();
+        final int N = normalizedQuery.length();
+        if (N == 0) {
+            return result;
+        }
+
+        // Find the smallest posting list among the keys the query implies.
+        HashSet<AppEntry> smallest = mPostings.get(
+                WORD_START + normalizedQuery.substring(0, Math.min(N, 2)));
+        if (smallest == null) {
+            return result;
+        }
+        for (int i=0; i+GRAM<=N; i++) {
+            HashSet<AppEntry> posting = mPostings.get(normalizedQuery.substring(i, i+GRAM));
+            if (posting == null) {
+                return result;
+            }
+            if (posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+
+        final String spaceQuery = " " + normalizedQuery;
+        final String dotQuery = "." + normalizedQuery;
+        for (AppEntry entry : smallest) {
+            String label = entry.getNormalizedLabel();
+            String pkg = entry.info.packageName.toLowerCase();
+            if (label.startsWith(normalizedQuery) || label.indexOf(spaceQuery) != -1
+                    || pkg.startsWith(normalizedQuery) || pkg.indexOf(dotQuery) != -1) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entries of the list that match the query, in list order.
+     */
+    ArrayList<AppEntry> filter(String normalizedQuery, ArrayList<AppEntry> entries) {
+        HashSet<AppEntry> matches = query(normalizedQuery);
+        ArrayList<AppEntry> result = new ArrayList<AppEntry>(matches.size());
+        for (int i=0; i<entries.size() && result.size()<matches.size(); i++) {
+            AppEntry entry = entries.get(i);
+            if (matches.contains(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+}
@@ -1,5 +1,6 @@
 package com.android.settings.applications;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -23,6 +24,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +32,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -41,11 +46,13 @@ public class ApplicationsState {
     static final String TAG = "ApplicationsState";
     static final boolean DEBUG = false;
     static final boolean DEBUG_LOCKING = false;
+    static final boolean DEBUG_LOCK_STATS = false;
 
     public static interface Callbacks {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onRebuildDiff(ArrayList<AppEntry> apps, RebuildDiff diff);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
@@ -56,12 +63,70 @@ public class ApplicationsState {
         public boolean filterApp(ApplicationInfo info);
     }
 
+    /**
+     * Describes how a session's list changed when it could be updated
+     * incrementally instead of being rebuilt from scratch.  An entry that
+     * moved within the list appears in both {@link #removed} and
+     * {@link #inserted}.
+     */
+    public static class RebuildDiff {
+        public final ArrayList<AppEntry> removed = new ArrayList<AppEntry>();
+        public final ArrayList<AppEntry> inserted = new ArrayList<AppEntry>();
+
+        public boolean isEmpty() {
+            return removed.isEmpty() && inserted.isEmpty();
+        }
+
+        void append(RebuildDiff other) {
+            removed.addAll(other.removed);
+            inserted.addAll(other.inserted);
+        }
+    }
+
+    // Incremental rebuilds are only worth it while few packages have
+    // changed; past this fraction of the list we just start over.
+    static final int INCREMENTAL_REBUILD_DIVISOR = 4;
+    static final int MIN_INCREMENTAL_REBUILD_CHANGES = 8;
+
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of getPackageSizeInfo() calls we keep in flight at once.
+    static final int MAX_SIZE_REQUESTS = 4;
+    // How long we wait for a size before giving up and asking again.
+    static final long SIZE_REQUEST_TIMEOUT = 5*1000;
+    // How long size changes are collected before being reported to sessions.
+    static final long SIZE_BATCH_DELAY = 100;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
+    // Collator used for all label sort keys.  Replaced when the locale
+    // changes; synchronize on sCollatorLock to use it.
+    static final Object sCollatorLock = new Object();
+    static Collator sCollator = Collator.getInstance();
+
+    static CollationKey getCollationKey(String label) {
+        synchronized (sCollatorLock) {
+            return sCollator.getCollationKey(label);
+        }
+    }
+
+    static void resetCollator() {
+        synchronized (sCollatorLock) {
+            sCollator = Collator.getInstance();
+        }
+    }
+
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        if (object1.labelKey != null && object2.labelKey != null) {
+            return object1.labelKey.compareTo(object2.labelKey);
+        }
+        synchronized (sCollatorLock) {
+            return sCollator.compare(object1.label, object2.label);
+        }
+    }
+
     public static String normalize(String str) {
         String tmp = Normalizer.normalize(str, Form.NFD);
         return REMOVE_DIACRITICALS_PATTERN.matcher(tmp)
@@ -90,6 +155,9 @@ public class ApplicationsState {
         final File apkFile;
         final long id;
         String label;
+        // Sort key for label, computed once so comparators only need to
+        // compare bytes.
+        CollationKey labelKey;
         long size;
         long internalSize;
         long externalSize;
@@ -106,7 +174,8 @@ public class ApplicationsState {
 
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
-        Drawable icon;
+        // May also be cleared without the lock when evicted from the icon cache.
+        volatile Drawable icon;
         String sizeStr;
         String internalSizeStr;
         String externalSizeStr;
@@ -123,9 +192,35 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntrySnapshot.Record rec) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            // Sizes from the snapshot are shown right away, but are still
+            // considered stale so that they get recomputed in the background.
+            this.sizeStale = true;
+            this.label = rec.label;
+            this.labelKey = getCollationKey(rec.label);
+            this.mounted = rec.mounted;
+            this.size = rec.size;
+            this.internalSize = rec.internalSize;
+            this.externalSize = rec.externalSize;
+            this.cacheSize = rec.cacheSize;
+            this.codeSize = rec.codeSize;
+            this.dataSize = rec.dataSize;
+            this.externalCodeSize = rec.externalCodeSize;
+            this.externalDataSize = rec.externalDataSize;
+            this.externalCacheSize = rec.externalCacheSize;
+            if (this.mounted) {
+                this.icon = rec.decodeIcon(context.getResources());
+            }
+        }
         
-        void ensureLabel(Context context) {
+        // Returns true if the label changed.
+        boolean ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                final String oldLabel = this.label;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -134,7 +229,13 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                if (!this.label.equals(oldLabel)) {
+                    this.labelKey = getCollationKey(this.label);
+                    this.normalizedLabel = null;
+                    return true;
+                }
             }
+            return false;
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
@@ -161,7 +262,6 @@ public class ApplicationsState {
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +271,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
@@ -270,19 +367,54 @@ public class ApplicationsState {
 
     boolean mResumed;
     boolean mHaveDisabledApps;
+    // Set while mApplications holds a list from setApplicationsForTest()
+    // rather than the real one; cleared when the real list is loaded.
+    boolean mTestApplications;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  mEntriesMap itself and
+    // mAppEntriesSnapshot may also be read without the lock, so that
+    // lookups never wait behind icon or size work.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
+    final AppEntrySnapshot mSnapshot;
+    AppIconCache mIconCache;
+    final AppSearchIndex mSearchIndex = new AppSearchIndex();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
+    // Copy of mAppEntries, replaced when entries are removed and once per
+    // batch of new entries, rather than for every entry added.
+    volatile AppEntry[] mAppEntriesSnapshot = new AppEntry[0];
+    boolean mAppEntriesSnapshotDirty;
+    // Entries currently on or near the screen, whose icons and sizes are
+    // loaded ahead of everything else.
+    volatile AppEntry[] mPriorityEntries = new AppEntry[0];
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Packages with an outstanding size request, and when it was issued.
+    final HashMap<String, Long> mComputingSizePkgs = new HashMap<String, Long>();
+    // Packages whose size changed since sessions were last told about it.
+    final ArrayList<String> mPendingSizeChanges = new ArrayList<String>();
+    String mConfigKey;
     boolean mSessionsChanged;
 
+    static final int LOCK_SITE_GET_ENTRY = 0;
+    static final int LOCK_SITE_REBUILD = 1;
+    static final int LOCK_SITE_LOAD_ENTRIES = 2;
+    static final int LOCK_SITE_SIZES = 3;
+    final LockStats mLockStats = new LockStats("getEntry", "rebuild", "loadEntries", "sizes");
+
+    // Package changes from broadcasts waiting to be applied as one batch.
+    // Synchronize on mPendingPackageOps itself.
+    static final int PACKAGE_OP_ADD = 1;
+    static final int PACKAGE_OP_REMOVE = 2;
+    static final int PACKAGE_OP_INVALIDATE = 3;
+    static final long PACKAGE_BATCH_DELAY = 200;
+    final LinkedHashMap<String, Integer> mPendingPackageOps
+            = new LinkedHashMap<String, Integer>();
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -311,15 +443,15 @@ public class ApplicationsState {
              if (Intent.ACTION_PACKAGE_ADDED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 addPackage(pkgName);
+                 queuePackageOp(pkgName, PACKAGE_OP_ADD);
              } else if (Intent.ACTION_PACKAGE_REMOVED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 removePackage(pkgName);
+                 queuePackageOp(pkgName, PACKAGE_OP_REMOVE);
              } else if (Intent.ACTION_PACKAGE_CHANGED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 invalidatePackage(pkgName);
+                 queuePackageOp(pkgName, PACKAGE_OP_INVALIDATE);
              } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr) ||
                      Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(actionStr)) {
                  // When applications become available or unavailable (perhaps because
@@ -336,7 +468,7 @@ public class ApplicationsState {
                  boolean avail = Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr);
                  if (avail) {
                      for (String pkgName : pkgList) {
-                         invalidatePackage(pkgName);
+                         queuePackageOp(pkgName, PACKAGE_OP_INVALIDATE);
                      }
                  }
              }
@@ -373,7 +505,7 @@ public class ApplicationsState {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        s.dispatchRebuildComplete();
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -387,12 +519,13 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
-                    }
+                    dispatchPendingSizeChanges();
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
+                    // Make sure every size is reported before the final
+                    // notification, even if its batch has not gone out yet.
+                    removeMessages(MSG_PACKAGE_SIZE_CHANGED);
+                    dispatchPendingSizeChanges();
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onAllSizesComputed();
                     }
@@ -405,6 +538,22 @@ public class ApplicationsState {
                 } break;
             }
         }
+
+        void dispatchPendingSizeChanges() {
+            String[] pkgs;
+            synchronized (mEntriesMap) {
+                if (mPendingSizeChanges.size() <= 0) {
+                    return;
+                }
+                pkgs = mPendingSizeChanges.toArray(new String[mPendingSizeChanges.size()]);
+                mPendingSizeChanges.clear();
+            }
+            for (int i=0; i<mActiveSessions.size(); i++) {
+                for (int j=0; j<pkgs.length; j++) {
+                    mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(pkgs[j]);
+                }
+            }
+        }
     }
 
     final MainHandler mMainHandler = new MainHandler();
@@ -431,6 +580,16 @@ public class ApplicationsState {
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
 
+        // Pick up whatever the last process knew about the installed apps
+        // before anything else runs on the loader thread.
+        mSnapshot = new AppEntrySnapshot(app.getCacheDir());
+
+        // Icons are only kept for the most recently shown apps, within an
+        // eighth of what the process may use.
+        ActivityManager am = (ActivityManager)app.getSystemService(Context.ACTIVITY_SERVICE);
+        mIconCache = new AppIconCache(am.getMemoryClass() * 1024 * 1024 / 8);
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SNAPSHOT);
+
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
             mRetrieveFlags = PackageManager.GET_UNINSTALLED_PACKAGES |
@@ -475,6 +634,14 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        RebuildDiff mPendingDiff;
+
+        // Packages added, removed or resized since the last rebuild.
+        // Synchronized on mEntriesMap.
+        final HashSet<String> mChangedPackages = new HashSet<String>();
+        boolean mFullRebuildNeeded = true;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -486,6 +653,7 @@ public class ApplicationsState {
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
+                    mFullRebuildNeeded = true;
                     doResumeIfNeededLocked();
                 }
             }
@@ -542,6 +710,33 @@ public class ApplicationsState {
             }
         }
 
+        /**
+         * Rebuilds on the calling thread rather than the loader thread, for
+         * benchmarks.  The session shouldn't be resumed, so that nothing
+         * else rebuilds it at the same time.
+         */
+        ArrayList<AppEntry> rebuildForTest(AppFilter filter, Comparator<AppEntry> comparator) {
+            synchronized (mRebuildSync) {
+                mRebuildRequested = true;
+                mRebuildAsync = false;
+                mRebuildFilter = filter;
+                mRebuildComparator = comparator;
+                mRebuildResult = null;
+            }
+            // The rebuild adjusts the priority of the thread it runs on.
+            final int tid = Process.myTid();
+            final int priority = Process.getThreadPriority(tid);
+            try {
+                handleRebuildList();
+            } finally {
+                Process.setThreadPriority(tid, priority);
+            }
+            synchronized (mRebuildSync) {
+                mRebuildAsync = true;
+                return mRebuildResult;
+            }
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
@@ -562,7 +757,39 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
+
+            HashSet<String> changed = null;
+            boolean full;
+            synchronized (mEntriesMap) {
+                full = mFullRebuildNeeded;
+                if (!full) {
+                    changed = new HashSet<String>(mChangedPackages);
+                }
+                mFullRebuildNeeded = false;
+                mChangedPackages.clear();
+            }
+
+            ArrayList<AppEntry> lastApps;
+            synchronized (mRebuildSync) {
+                lastApps = mLastAppList;
+                if (lastApps == null || filter != mLastFilter || comparator != mLastComparator) {
+                    full = true;
+                }
+            }
+            if (!full && changed.size() > Math.max(MIN_INCREMENTAL_REBUILD_CHANGES,
+                    lastApps.size() / INCREMENTAL_REBUILD_DIVISOR)) {
+                full = true;
+            }
+
+            if (!full) {
+                RebuildDiff diff = new RebuildDiff();
+                ArrayList<AppEntry> newApps = applyChanges(lastApps, changed, filter,
+                        comparator, diff);
+                publishRebuild(newApps, filter, comparator, diff);
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                return;
+            }
+
             List<ApplicationInfo> apps;
             synchronized (mEntriesMap) {
                 apps = new ArrayList<ApplicationInfo>(mApplications);
@@ -573,36 +800,128 @@ public class ApplicationsState {
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    AppEntry entry = mEntriesMap.get(info.packageName);
+                    if (entry == null || entry.info != info) {
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                            final long lockStart = DEBUG_LOCK_STATS ? LockStats.now() : 0;
+                            entry = getEntryLocked(info);
+                            if (DEBUG_LOCK_STATS) mLockStats.record(LOCK_SITE_REBUILD, lockStart);
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                        }
                     }
+                    synchronized (entry) {
+                        if (entry.ensureLabel(mContext)) {
+                            mSearchIndex.add(entry);
+                        }
+                    }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
+            synchronized (mEntriesMap) {
+                updateEntriesSnapshotIfNeededLocked();
+            }
+
             Collections.sort(filteredApps, comparator);
 
+            publishRebuild(filteredApps, filter, comparator, null);
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        // Applies the given package changes to a copy of the previous list,
+        // keeping it sorted with binary-search inserts.
+        private ArrayList<AppEntry> applyChanges(ArrayList<AppEntry> lastApps,
+                HashSet<String> changed, AppFilter filter, Comparator<AppEntry> comparator,
+                RebuildDiff diff) {
+            ArrayList<AppEntry> newApps = new ArrayList<AppEntry>(lastApps);
+            if (changed.isEmpty()) {
+                return newApps;
+            }
+            if (DEBUG) Log.i(TAG, "Incremental rebuild of " + changed);
+            for (int i=newApps.size()-1; i>=0; i--) {
+                if (changed.contains(newApps.get(i).info.packageName)) {
+                    diff.removed.add(newApps.remove(i));
+                }
+            }
+            synchronized (mEntriesMap) {
+                if (DEBUG_LOCKING) Log.v(TAG, "applyChanges acquired lock");
+                for (String pkgName : changed) {
+                    int idx = indexOfApplicationInfoLocked(pkgName);
+                    if (idx < 0) {
+                        continue;
+                    }
+                    ApplicationInfo info = mApplications.get(idx);
+                    if (filter == null || filter.filterApp(info)) {
+                        AppEntry entry = getEntryLocked(info);
+                        if (entry.ensureLabel(mContext)) {
+                            mSearchIndex.add(entry);
+                        }
+                        diff.inserted.add(entry);
+                    }
+                }
+                updateEntriesSnapshotIfNeededLocked();
+                if (DEBUG_LOCKING) Log.v(TAG, "applyChanges releasing lock");
+            }
+            for (int i=0; i<diff.inserted.size(); i++) {
+                AppEntry entry = diff.inserted.get(i);
+                int pos = Collections.binarySearch(newApps, entry, comparator);
+                newApps.add(pos >= 0 ? pos : -pos-1, entry);
+            }
+            return newApps;
+        }
+
+        private void publishRebuild(ArrayList<AppEntry> apps, AppFilter filter,
+                Comparator<AppEntry> comparator, RebuildDiff diff) {
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
+                    mLastAppList = apps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = apps;
+                        mPendingDiff = null;
                         mRebuildSync.notifyAll();
                     } else {
+                        if (diff == null) {
+                            mPendingDiff = null;
+                        } else if (mPendingDiff != null) {
+                            mPendingDiff.append(diff);
+                        } else if (!mMainHandler.hasMessages(
+                                MainHandler.MSG_REBUILD_COMPLETE, this)) {
+                            mPendingDiff = diff;
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
                             Message msg = mMainHandler.obtainMessage(
                                     MainHandler.MSG_REBUILD_COMPLETE, this);
                             mMainHandler.sendMessage(msg);
                         }
                     }
+                } else {
+                    // Another rebuild is coming; whatever it is based on
+                    // must be computed from scratch.
+                    synchronized (mEntriesMap) {
+                        mFullRebuildNeeded = true;
+                    }
                 }
             }
+        }
 
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        void dispatchRebuildComplete() {
+            ArrayList<AppEntry> apps;
+            RebuildDiff diff;
+            synchronized (mRebuildSync) {
+                apps = mLastAppList;
+                diff = mPendingDiff;
+                mPendingDiff = null;
+            }
+            if (diff != null) {
+                mCallbacks.onRebuildDiff(apps, diff);
+            } else {
+                mCallbacks.onRebuildComplete(apps);
+            }
         }
 
         public void release() {
@@ -621,16 +940,26 @@ public class ApplicationsState {
         return s;
     }
 
+    void noteChangedPackageLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mChangedPackages.add(pkgName);
+        }
+    }
+
     void doResumeIfNeededLocked() {
         if (mResumed) {
             return;
         }
         mResumed = true;
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mFullRebuildNeeded = true;
+        }
         if (mPackageIntentReceiver == null) {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
         mApplications = mPm.getInstalledApplications(mRetrieveFlags);
+        mTestApplications = false;
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
@@ -640,6 +969,12 @@ public class ApplicationsState {
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            updateEntriesSnapshotLocked();
+            mIconCache.clear();
+            mSearchIndex.clear();
+            resetCollator();
+            mConfigKey = AppEntrySnapshot.buildConfigKey(mContext.getResources());
+            mSnapshot.setCurrentConfig(mConfigKey);
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,7 +999,13 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        // Requests still outstanding from before the pause are forgotten, so
+        // their entries must be free to be asked about again.
+        for (int i=0; i<mAppEntries.size(); i++) {
+            mAppEntries.get(i).sizeLoadStart = 0;
+        }
+        mComputingSizePkgs.clear();
+        mBackgroundHandler.removeMessages(BackgroundHandler.MSG_SIZE_TIMEOUT);
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -688,58 +1029,110 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        if (DEBUG) Log.i(TAG, mIconCache.toString());
+        if (DEBUG_LOCK_STATS) {
+            Log.i(TAG, mLockStats.toString());
+            mLockStats.reset();
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_SAVE_SNAPSHOT)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_SAVE_SNAPSHOT);
+        }
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
+            final long lockStart = DEBUG_LOCK_STATS ? LockStats.now() : 0;
+            entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
                     if (packageName.equals(info.packageName)) {
                         entry = getEntryLocked(info);
+                        updateEntriesSnapshotIfNeededLocked();
                         break;
                     }
                 }
             }
+            if (DEBUG_LOCK_STATS) mLockStats.record(LOCK_SITE_GET_ENTRY, lockStart);
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
             return entry;
         }
     }
     
-    void ensureIcon(AppEntry entry) {
-        if (entry.icon != null) {
-            return;
+    /**
+     * Returns the entries of the given list whose label or package name
+     * matches the query, in list order.
+     */
+    ArrayList<AppEntry> filterEntries(CharSequence query, ArrayList<AppEntry> entries) {
+        return mSearchIndex.filter(normalize(query.toString()), entries);
+    }
+
+    /**
+     * Sets the entries the user is currently looking at, so that their
+     * icons and sizes are loaded before those of off-screen entries.
+     */
+    void setPriorityEntries(List<AppEntry> entries) {
+        mPriorityEntries = entries.toArray(new AppEntry[entries.size()]);
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_PRIORITY_ICONS)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_PRIORITY_ICONS);
+        }
+    }
+
+    /**
+     * Makes sure the entry has an icon, loading it again if it was evicted
+     * from the icon cache, and returns it.
+     */
+    Drawable ensureIcon(AppEntry entry) {
+        Drawable icon = mIconCache.get(entry);
+        if (icon != null) {
+            return icon;
         }
+        // The icon is read once under the entry lock, so an eviction right
+        // after can't make this return null.  Putting it in the cache can
+        // evict other entries, which takes their locks, so that happens
+        // after this entry's lock is released.
+        final boolean loaded;
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            loaded = entry.ensureIconLocked(mContext, mPm);
+            icon = entry.icon;
+        }
+        if (loaded) {
+            mIconCache.put(entry, icon);
         }
+        return icon;
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        final AppEntry[] entries = mAppEntriesSnapshot;
+        for (int i=entries.length-1; i>=0; i--) {
+            sum += entries[i].cacheSize;
         }
         return sum;
     }
+
+    void updateEntriesSnapshotLocked() {
+        mAppEntriesSnapshot = mAppEntries.toArray(new AppEntry[mAppEntries.size()]);
+        mAppEntriesSnapshotDirty = false;
+    }
+
+    void updateEntriesSnapshotIfNeededLocked() {
+        if (mAppEntriesSnapshotDirty) {
+            updateEntriesSnapshotLocked();
+        }
+    }
     
     int indexOfApplicationInfoLocked(String pkgName) {
         for (int i=mApplications.size()-1; i>=0; i--) {
@@ -768,19 +1161,8 @@ public class ApplicationsState {
                     return;
                 }
                 ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+                if (addApplicationInfoLocked(info)) {
+                    packageListChangedLocked();
                 }
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
             }
@@ -788,29 +1170,37 @@ public class ApplicationsState {
         }
     }
 
+    // Adds a freshly queried package; returns true if the list changed.
+    boolean addApplicationInfoLocked(ApplicationInfo info) {
+        if ((!mResumed && !mTestApplications)
+                || indexOfApplicationInfoLocked(info.packageName) >= 0) {
+            return false;
+        }
+        if (!info.enabled) {
+            if (info.enabledSetting
+                    != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
+                return false;
+            }
+            mHaveDisabledApps = true;
+        }
+        mApplications.add(info);
+        noteChangedPackageLocked(info.packageName);
+        return true;
+    }
+
+    void packageListChangedLocked() {
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+        }
+        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+        }
+    }
+
     void removePackage(String pkgName) {
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
-            int idx = indexOfApplicationInfoLocked(pkgName);
-            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
-            if (idx >= 0) {
-                AppEntry entry = mEntriesMap.get(pkgName);
-                if (DEBUG) Log.i(TAG, "removePackage: " + entry);
-                if (entry != null) {
-                    mEntriesMap.remove(pkgName);
-                    mAppEntries.remove(entry);
-                }
-                ApplicationInfo info = mApplications.get(idx);
-                mApplications.remove(idx);
-                if (!info.enabled) {
-                    mHaveDisabledApps = false;
-                    for (int i=0; i<mApplications.size(); i++) {
-                        if (!mApplications.get(i).enabled) {
-                            mHaveDisabledApps = true;
-                            break;
-                        }
-                    }
-                }
+            if (removePackageLocked(pkgName)) {
                 if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
                     mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
                 }
@@ -819,19 +1209,170 @@ public class ApplicationsState {
         }
     }
 
+    // Returns true if the package was known and has been removed.
+    boolean removePackageLocked(String pkgName) {
+        int idx = indexOfApplicationInfoLocked(pkgName);
+        if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
+        if (idx < 0) {
+            return false;
+        }
+        AppEntry entry = mEntriesMap.get(pkgName);
+        if (DEBUG) Log.i(TAG, "removePackage: " + entry);
+        if (entry != null) {
+            mEntriesMap.remove(pkgName);
+            mAppEntries.remove(entry);
+            updateEntriesSnapshotLocked();
+            mIconCache.remove(entry);
+            mSearchIndex.remove(entry);
+        }
+        ApplicationInfo info = mApplications.get(idx);
+        mApplications.remove(idx);
+        noteChangedPackageLocked(pkgName);
+        if (!info.enabled) {
+            mHaveDisabledApps = false;
+            for (int i=0; i<mApplications.size(); i++) {
+                if (!mApplications.get(i).enabled) {
+                    mHaveDisabledApps = true;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a package change reported by a broadcast.  Changes arriving
+     * within PACKAGE_BATCH_DELAY of each other are applied together.
+     */
+    void queuePackageOp(String pkgName, int op) {
+        synchronized (mPendingPackageOps) {
+            Integer prev = mPendingPackageOps.get(pkgName);
+            if (prev != null && prev != op && op != PACKAGE_OP_REMOVE) {
+                // Anything other than a final removal needs a fresh look
+                // at the package.
+                op = PACKAGE_OP_INVALIDATE;
+            }
+            mPendingPackageOps.put(pkgName, op);
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_APPLY_PACKAGE_OPS)) {
+            mBackgroundHandler.sendEmptyMessageDelayed(BackgroundHandler.MSG_APPLY_PACKAGE_OPS,
+                    PACKAGE_BATCH_DELAY);
+        }
+    }
+
+    void applyPendingPackageOps() {
+        ArrayList<String> pkgs;
+        ArrayList<Integer> ops;
+        synchronized (mPendingPackageOps) {
+            if (mPendingPackageOps.isEmpty()) {
+                return;
+            }
+            pkgs = new ArrayList<String>(mPendingPackageOps.keySet());
+            ops = new ArrayList<Integer>(mPendingPackageOps.values());
+            mPendingPackageOps.clear();
+        }
+        if (DEBUG) Log.i(TAG, "Applying " + pkgs.size() + " package changes");
+
+        // Query the package manager before taking the lock.
+        final ApplicationInfo[] infos = new ApplicationInfo[pkgs.size()];
+        for (int i=0; i<pkgs.size(); i++) {
+            if (ops.get(i) != PACKAGE_OP_REMOVE) {
+                try {
+                    infos[i] = mPm.getApplicationInfo(pkgs.get(i), mRetrieveFlags);
+                } catch (NameNotFoundException e) {
+                }
+            }
+        }
+
+        synchronized (mEntriesMap) {
+            if (DEBUG_LOCKING) Log.v(TAG, "applyPendingPackageOps acquired lock");
+            if (!mResumed) {
+                // Everything gets queried again on the next resume.
+                return;
+            }
+            boolean changed = false;
+            for (int i=0; i<pkgs.size(); i++) {
+                final int op = ops.get(i);
+                if (op != PACKAGE_OP_ADD) {
+                    changed |= removePackageLocked(pkgs.get(i));
+                }
+                if (op != PACKAGE_OP_REMOVE && infos[i] != null) {
+                    changed |= addApplicationInfoLocked(infos[i]);
+                }
+            }
+            if (changed) {
+                packageListChangedLocked();
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "applyPendingPackageOps releasing lock");
+        }
+    }
+
     void invalidatePackage(String pkgName) {
         removePackage(pkgName);
         addPackage(pkgName);
     }
+
+    /**
+     * Replaces the installed applications with synthetic ones, for
+     * benchmarks.  Their sizes are treated as known so that nothing asks the
+     * package manager about them.  Passing null drops them again, and the
+     * real list is loaded on the next resume.  Until then the snapshot is
+     * not saved, and packages can be added without being resumed.
+     */
+    void setApplicationsForTest(List<ApplicationInfo> apps) {
+        synchronized (mEntriesMap) {
+            mTestApplications = true;
+            mEntriesMap.clear();
+            mAppEntries.clear();
+            mIconCache.clear();
+            mSearchIndex.clear();
+            mComputingSizePkgs.clear();
+            mBackgroundHandler.mIconPrefetchIndex = 0;
+            for (int i=0; i<mSessions.size(); i++) {
+                mSessions.get(i).mFullRebuildNeeded = true;
+            }
+            mApplications = apps != null
+                    ? new ArrayList<ApplicationInfo>(apps) : new ArrayList<ApplicationInfo>();
+            for (int i=0; i<mApplications.size(); i++) {
+                AppEntry entry = getEntryLocked(mApplications.get(i));
+                entry.size = entry.internalSize = entry.info.packageName.hashCode() & 0xffffff;
+                entry.sizeStr = entry.internalSizeStr = getSizeStr(entry.size);
+                entry.sizeStale = false;
+            }
+            updateEntriesSnapshotLocked();
+        }
+    }
     
+    /**
+     * Replaces the icon cache, for tests that need a small budget.
+     */
+    void setIconCacheForTest(AppIconCache cache) {
+        synchronized (mEntriesMap) {
+            mIconCache.clear();
+            mIconCache = cache;
+        }
+    }
+
     AppEntry getEntryLocked(ApplicationInfo info) {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            AppEntrySnapshot.Record rec = mSnapshot.take(info,
+                    new File(info.sourceDir).exists());
+            if (rec != null) {
+                entry = new AppEntry(mContext, info, mCurId++, rec);
+                mIconCache.put(entry, entry.icon);
+                entry.sizeStr = getSizeStr(entry.size);
+                entry.internalSizeStr = getSizeStr(entry.internalSize);
+                entry.externalSizeStr = getSizeStr(entry.externalSize);
+            } else {
+                entry = new AppEntry(mContext, info, mCurId++);
+            }
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            mAppEntriesSnapshotDirty = true;
+            mSearchIndex.add(entry);
         } else if (entry.info != info) {
             entry.info = info;
         }
@@ -872,60 +1413,78 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_LOAD_SNAPSHOT = 5;
+        static final int MSG_SAVE_SNAPSHOT = 6;
+        static final int MSG_SIZE_TIMEOUT = 7;
+        static final int MSG_LOAD_PRIORITY_ICONS = 8;
+        static final int MSG_APPLY_PACKAGE_OPS = 9;
 
         boolean mRunning;
+        // Entries of mAppEntriesSnapshot below this have been visited by
+        // the current icon prefetch.
+        int mIconPrefetchIndex;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                // Only the entry itself is locked while its sizes are
+                // updated; the global lock is just for the bookkeeping below.
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                        }
+                    }
+                }
                 synchronized (mEntriesMap) {
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
+                    final long lockStart = DEBUG_LOCK_STATS ? LockStats.now() : 0;
+                    if (sizeChanged) {
+                        noteChangedPackageLocked(stats.packageName);
+                        if (!mPendingSizeChanges.contains(stats.packageName)) {
+                            mPendingSizeChanges.add(stats.packageName);
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                            mMainHandler.sendEmptyMessageDelayed(
+                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, SIZE_BATCH_DELAY);
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    // Keep the size pass going even if this request was
+                    // forgotten by a resume while it was outstanding.
+                    mComputingSizePkgs.remove(stats.packageName);
+                    if (!hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
+                    if (DEBUG_LOCK_STATS) mLockStats.record(LOCK_SITE_SIZES, lockStart);
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
@@ -935,6 +1494,69 @@ public class ApplicationsState {
             super(looper);
         }
 
+        void saveSnapshot() {
+            String configKey;
+            ArrayList<AppEntry> entries;
+            ArrayList<ApplicationInfo> apps;
+            synchronized (mEntriesMap) {
+                if (mResumed || mConfigKey == null || mTestApplications) {
+                    return;
+                }
+                configKey = mConfigKey;
+                entries = new ArrayList<AppEntry>(mAppEntries);
+                apps = new ArrayList<ApplicationInfo>(mApplications);
+            }
+            // Anything not consumed by now belongs to a package that is gone
+            // or has changed; don't keep it around.
+            mSnapshot.clear();
+            final int iconSize = mContext.getResources().getDimensionPixelSize(
+                    android.R.dimen.app_icon_size);
+            ArrayList<AppEntrySnapshot.Record> records
+                    = new ArrayList<AppEntrySnapshot.Record>(apps.size());
+            HashSet<String> recorded = new HashSet<String>();
+            boolean changed = false;
+            for (int i=0; i<entries.size(); i++) {
+                AppEntry entry = entries.get(i);
+                AppEntrySnapshot.Record saved = mSnapshot.getSaved(configKey,
+                        entry.info.packageName);
+                AppEntrySnapshot.Record rec = null;
+                synchronized (entry) {
+                    if (entry.label != null) {
+                        rec = AppEntrySnapshot.updateRecord(saved, entry,
+                                mContext.getResources(), iconSize);
+                    }
+                }
+                if (rec == null && saved != null && AppEntrySnapshot.isCurrent(saved, entry.info)) {
+                    // Not loaded far enough this time; keep what we had.
+                    rec = saved;
+                }
+                if (rec != null) {
+                    records.add(rec);
+                    recorded.add(rec.packageName);
+                    changed |= rec != saved;
+                }
+            }
+            // Packages that never got an entry this time keep their records.
+            for (int i=0; i<apps.size(); i++) {
+                final String pkgName = apps.get(i).packageName;
+                if (recorded.contains(pkgName)) {
+                    continue;
+                }
+                AppEntrySnapshot.Record saved = mSnapshot.getSaved(configKey, pkgName);
+                if (saved != null) {
+                    records.add(saved);
+                    recorded.add(pkgName);
+                }
+            }
+            // Records of removed packages are dropped.
+            changed |= records.size() != mSnapshot.getSavedCount();
+            if (!changed) {
+                if (DEBUG) Log.i(TAG, "Snapshot unchanged");
+                return;
+            }
+            mSnapshot.write(configKey, records);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -954,10 +1576,34 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_APPLY_PACKAGE_OPS: {
+                    applyPendingPackageOps();
+                } break;
+                case MSG_LOAD_SNAPSHOT: {
+                    mSnapshot.read();
+                } break;
+                case MSG_SAVE_SNAPSHOT: {
+                    saveSnapshot();
+                } break;
+                case MSG_SIZE_TIMEOUT: {
+                    synchronized (mEntriesMap) {
+                        // The request may have completed and been re-issued
+                        // since this timeout was posted.
+                        Long start = mComputingSizePkgs.get(msg.obj);
+                        if (start != null && start <= (SystemClock.uptimeMillis()
+                                - SIZE_REQUEST_TIMEOUT)) {
+                            if (DEBUG) Log.i(TAG, "Timed out computing size of " + msg.obj);
+                            mComputingSizePkgs.remove(msg.obj);
+                            sendEmptyMessage(MSG_LOAD_SIZES);
+                        }
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
+                    mIconPrefetchIndex = 0;
                     int numDone = 0;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
+                        final long lockStart = DEBUG_LOCK_STATS ? LockStats.now() : 0;
                         for (int i=0; i<mApplications.size() && numDone<6; i++) {
                             if (!mRunning) {
                                 mRunning = true;
@@ -971,6 +1617,8 @@ public class ApplicationsState {
                                 getEntryLocked(info);
                             }
                         }
+                        updateEntriesSnapshotIfNeededLocked();
+                        if (DEBUG_LOCK_STATS) mLockStats.record(LOCK_SITE_LOAD_ENTRIES, lockStart);
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
@@ -980,34 +1628,24 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
-                case MSG_LOAD_ICONS: {
+                case MSG_LOAD_PRIORITY_ICONS: {
+                    // Unlike MSG_LOAD_ICONS this doesn't go on to sizes; it
+                    // only makes sure what is on screen is ready.
+                    final AppEntry[] priority = mPriorityEntries;
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
-                            }
+                    for (int i=0; i<priority.length; i++) {
+                        if (loadIcon(priority[i], false)) {
+                            numDone++;
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
                         }
                     }
-                    if (numDone >= 2) {
+                } break;
+                case MSG_LOAD_ICONS: {
+                    if (loadIconsBatch()) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
                         sendEmptyMessage(MSG_LOAD_SIZES);
@@ -1016,43 +1654,131 @@ public class ApplicationsState {
                 case MSG_LOAD_SIZES: {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        final long lockStart = DEBUG_LOCK_STATS ? LockStats.now() : 0;
+                        try {
+                            loadSizesLocked();
+                        } finally {
+                            if (DEBUG_LOCK_STATS) mLockStats.record(LOCK_SITE_SIZES, lockStart);
                         }
+                    }
+                } break;
+            }
+        }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
-                            }
-                        }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
+        // Loads the next couple of icons ahead of time; returns true if there
+        // may be more to load.  Icons are decoded holding only the entry's
+        // own lock, so UI thread lookups are not stuck behind them.  Entries
+        // on screen go first.  Each other entry is only visited once per
+        // load, and only until the icon cache is full; after that icons are
+        // loaded on demand as they are shown, since loading them here would
+        // evict others that would then be loaded again, forever.
+        boolean loadIconsBatch() {
+            int numDone = 0;
+            final AppEntry[] priority = mPriorityEntries;
+            for (int i=0; i<priority.length && numDone<2 && !mIconCache.isFull(); i++) {
+                if (loadIcon(priority[i], true)) {
+                    numDone++;
+                }
+            }
+            final AppEntry[] entries = mAppEntriesSnapshot;
+            while (mIconPrefetchIndex < entries.length && numDone<2
+                    && !mIconCache.isFull()) {
+                if (loadIcon(entries[mIconPrefetchIndex++], true)) {
+                    numDone++;
+                }
+            }
+            if (numDone > 0) {
+                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                }
+            }
+            return numDone >= 2;
+        }
+
+        // Loads the icon of the entry if it doesn't have one yet; returns
+        // true if it did any work.  Only the main loading sequence reports
+        // itself as running, since only it clears that state again.
+        private boolean loadIcon(AppEntry entry, boolean reportRunning) {
+            if (entry.icon != null && entry.mounted) {
+                return false;
+            }
+            final Drawable icon;
+            synchronized (entry) {
+                if (!entry.ensureIconLocked(mContext, mPm)) {
+                    return false;
+                }
+                icon = entry.icon;
+            }
+            // Not holding the entry lock; see ensureIcon().
+            mIconCache.put(entry, icon);
+            if (reportRunning && !mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            return true;
+        }
+
+        private void loadSizesLocked() {
+            if (mComputingSizePkgs.size() >= MAX_SIZE_REQUESTS) {
+                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            boolean needMore = false;
+            // Look at the entries on screen first, then everything else.
+            final AppEntry[] priority = mPriorityEntries;
+            final int N = priority.length + mAppEntries.size();
+            for (int i=0; i<N; i++) {
+                AppEntry entry;
+                if (i < priority.length) {
+                    entry = priority[i];
+                    if (mEntriesMap.get(entry.info.packageName) != entry) {
+                        // Removed since it was shown.
+                        continue;
+                    }
+                } else {
+                    entry = mAppEntries.get(i - priority.length);
+                }
+                if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
+                    needMore = true;
+                    final String pkgName = entry.info.packageName;
+                    if (mComputingSizePkgs.containsKey(pkgName)) {
+                        continue;
+                    }
+                    if (entry.sizeLoadStart == 0 ||
+                            (entry.sizeLoadStart <= (now-SIZE_REQUEST_TIMEOUT))) {
+                        if (!mRunning) {
+                            mRunning = true;
                             Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                        entry.sizeLoadStart = now;
+                        mComputingSizePkgs.put(pkgName, now);
+                        sendMessageDelayed(obtainMessage(MSG_SIZE_TIMEOUT, pkgName),
+                                SIZE_REQUEST_TIMEOUT);
+                        mPm.getPackageSizeInfo(pkgName, mStatsObserver);
+                        if (mComputingSizePkgs.size() >= MAX_SIZE_REQUESTS) {
+                            break;
+                        }
                     }
-                } break;
+                }
             }
+            if (needMore) {
+                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                return;
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                mRunning = false;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                mMainHandler.sendMessage(m);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
         }
-
     }
 }
@@ -544,8 +544,7 @@ public class InstalledAppDetails extends Fragment
         appSnippet.setPaddingRelative(0, appSnippet.getPaddingTop(), 0, appSnippet.getPaddingBottom());
 
         ImageView icon = (ImageView) appSnippet.findViewById(R.id.app_icon);
-        mState.ensureIcon(mAppEntry);
-        icon.setImageDrawable(mAppEntry.icon);
+        icon.setImageDrawable(mState.ensureIcon(mAppEntry));
         // Set application name.
         TextView label = (TextView) appSnippet.findViewById(R.id.app_name);
         label.setText(mAppEntry.label);
@@ -594,6 +593,10 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onRebuildDiff(ArrayList<AppEntry> apps, ApplicationsState.RebuildDiff diff) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
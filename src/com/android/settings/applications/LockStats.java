@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+
+/**
+ * Counts how often, and for how long, each of a fixed set of call sites
+ * holds a lock.
+ */
+class LockStats {
+    private final String[] mSiteNames;
+    private final int[] mCounts;
+    private final long[] mTotalNanos;
+    private final long[] mMaxNanos;
+
+    LockStats(String... siteNames) {
+        mSiteNames = siteNames;
+        mCounts = new int[siteNames.length];
+        mTotalNanos = new long[siteNames.length];
+        mMaxNanos = new long[siteNames.length];
+    }
+
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records that the lock was held by the given site from startNanos,
+     * as returned by {@link #now()}, until now.
+     */
+    synchronized void record(int site, long startNanos) {
+        final long held = now() - startNanos;
+        mCounts[site]++;
+        mTotalNanos[site] += held;
+        if (held > mMaxNanos[site]) {
+            mMaxNanos[site] = held;
+        }
+    }
+
+    synchronized void reset() {
+        for (int i=0; i<mSiteNames.length; i++) {
+            mCounts[i] = 0;
+            mTotalNanos[i] = 0;
+            mMaxNanos[i] = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("LockStats{");
+        for (int i=0; i<mSiteNames.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mSiteNames[i]);
+            sb.append(": n=");
+            sb.append(mCounts[i]);
+            sb.append(" total=");
+            sb.append(mTotalNanos[i] / 1000);
+            sb.append("us max=");
+            sb.append(mMaxNanos[i] / 1000);
+            sb.append("us");
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
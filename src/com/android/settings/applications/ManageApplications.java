@@ -34,6 +34,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.net.NetworkPolicyManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -264,6 +265,7 @@ public class ManageApplications extends Fragment implements
                 mApplications = new ApplicationsAdapter(mApplicationsState, this, mFilter);
                 mListView.setAdapter(mApplications);
                 mListView.setRecyclerListener(mApplications);
+                mListView.setOnScrollListener(mApplications);
                 mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
                 mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
                 mUsedStorageText = (TextView)mListContainer.findViewById(R.id.usedStorageText);
@@ -529,7 +531,8 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
@@ -543,6 +546,10 @@ public class ManageApplications extends Fragment implements
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
+        // Last range reported to ApplicationsState as worth loading first.
+        private ArrayList<ApplicationsState.AppEntry> mPriorityEntriesSource;
+        private int mPriorityStart = -1;
+        private int mPriorityEnd = -1;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -674,18 +681,7 @@ public class ManageApplications extends Fragment implements
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
-                String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                return mState.filterEntries(prefix, origEntries);
             }
         }
 
@@ -711,6 +707,22 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildDiff(ArrayList<AppEntry> apps, ApplicationsState.RebuildDiff diff) {
+            if (mWaitingForData) {
+                onRebuildComplete(apps);
+                return;
+            }
+            // The list was updated in place from the one we are showing, so
+            // there is no need to animate it back in.
+            mBaseEntries = apps;
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            notifyDataSetChanged();
+            if (!diff.isEmpty()) {
+                mTab.updateStorageUsage();
+            }
+        }
+
         @Override
         public void onPackageListChanged() {
             rebuild(false);
@@ -781,9 +793,9 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
-                    holder.appIcon.setImageDrawable(entry.icon);
+                Drawable icon = mState.ensureIcon(entry);
+                if (icon != null) {
+                    holder.appIcon.setImageDrawable(icon);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
@@ -817,6 +829,36 @@ public class ManageApplications extends Fragment implements
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
         }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (!mResumed || mEntries == null) {
+                return;
+            }
+            // Besides the rows on screen, prefer a screenful on either side
+            // so they are ready by the time the user scrolls to them.
+            final int start = Math.max(0, firstVisibleItem - visibleItemCount);
+            final int end = Math.min(mEntries.size(),
+                    firstVisibleItem + visibleItemCount * 2);
+            if (mPriorityEntriesSource == mEntries && start == mPriorityStart
+                    && end == mPriorityEnd) {
+                return;
+            }
+            mPriorityEntriesSource = mEntries;
+            mPriorityStart = start;
+            mPriorityEnd = end;
+            ArrayList<ApplicationsState.AppEntry> entries
+                    = new ArrayList<ApplicationsState.AppEntry>(Math.max(0, end - start));
+            for (int i=start; i<end; i++) {
+                entries.add(mEntries.get(i));
+            }
+            mState.setPriorityEntries(entries);
+        }
     }
     
     @Override
@@ -134,6 +134,7 @@ public class BatteryHistoryChart extends View {
     int mFontSize;
     
     BatteryStats mStats;
+    BatteryHistoryTimeline mTimeline;
     long mStatsPeriod;
     String mDurationString;
     String mTotalDurationString;
@@ -166,7 +167,6 @@ public class BatteryHistoryChart extends View {
     static final int PHONE_SIGNAL_BIN_MASK = CHART_DATA_BIN_MASK;
     static final int PHONE_SIGNAL_BIN_SHIFT = CHART_DATA_BIN_SHIFT;
     
-    int mNumHist;
     long mHistStart;
     long mHistEnd;
     int mBatLow;
@@ -174,6 +174,13 @@ public class BatteryHistoryChart extends View {
     boolean mHaveWifi;
     boolean mHaveGps;
     boolean mHavePhoneSignal;
+
+    // Battery level plotting state while building paths.
+    Path mCurLevelPath;
+    Path mLastLinePath;
+    int mStartX;
+    int mLastX;
+    int mLastY;
     
     public BatteryHistoryChart(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -335,7 +342,16 @@ public class BatteryHistoryChart extends View {
     }
     
     void setStats(BatteryStats stats) {
+        setStats(stats, BatteryHistoryTimeline.decode(stats));
+    }
+
+    /**
+     * Show the given stats using history already decoded from them, so the
+     * history doesn't need to be walked again.
+     */
+    void setStats(BatteryStats stats, BatteryHistoryTimeline timeline) {
         mStats = stats;
+        mTimeline = timeline;
         
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
                 BatteryStats.STATS_SINCE_CHARGED);
@@ -350,32 +366,11 @@ public class BatteryHistoryChart extends View {
         mWakeLockLabel = getContext().getString(R.string.battery_stats_wake_lock_label);
         mPhoneSignalLabel = getContext().getString(R.string.battery_stats_phone_signal_label);
         
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        int aggrStates = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (rec.cmd == HistoryItem.CMD_UPDATE) {
-                    if (first) {
-                        first = false;
-                        mHistStart = rec.time;
-                    }
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistEnd = rec.time;
-                    aggrStates |= rec.states;
-                }
-            }
-        }
-        mNumHist = lastInteresting;
+        mHistStart = timeline.mStart;
+        mHistEnd = timeline.mEnd;
+        final int aggrStates = timeline.mAggrStates;
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
@@ -394,18 +389,18 @@ public class BatteryHistoryChart extends View {
         mTextDescent = (int)mTextPaint.descent();
     }
 
-    void finishPaths(int w, int h, int levelh, int startX, int y, Path curLevelPath,
-            int lastX, boolean lastCharging, boolean lastScreenOn, boolean lastGpsOn,
-            boolean lastWifiRunning, boolean lastWakeLock, Path lastPath) {
+    void finishPaths(int w, int h, int levelh, boolean lastCharging, boolean lastScreenOn,
+            boolean lastGpsOn, boolean lastWifiRunning, boolean lastWakeLock) {
+        final Path curLevelPath = mCurLevelPath;
         if (curLevelPath != null) {
-            if (lastX >= 0 && lastX < w) {
-                if (lastPath != null) {
-                    lastPath.lineTo(w, y);
+            if (mLastX >= 0 && mLastX < w) {
+                if (mLastLinePath != null) {
+                    mLastLinePath.lineTo(w, mLastY);
                 }
-                curLevelPath.lineTo(w, y);
+                curLevelPath.lineTo(w, mLastY);
             }
             curLevelPath.lineTo(w, mLevelTop+levelh);
-            curLevelPath.lineTo(startX, mLevelTop+levelh);
+            curLevelPath.lineTo(mStartX, mLevelTop+levelh);
             curLevelPath.close();
         }
         
@@ -427,6 +422,59 @@ public class BatteryHistoryChart extends View {
         if (mHavePhoneSignal) {
             mPhoneSignalChart.finish(w);
         }
+
+        mCurLevelPath = null;
+        mLastLinePath = null;
+        mLastX = mLastY = -1;
+    }
+
+    /**
+     * Plot the lowest and highest battery level seen within one pixel column,
+     * in the order they occurred.
+     */
+    void plotLevelColumn(int x, int low, int high, boolean lowFirst, int levelh) {
+        if (low == high) {
+            plotLevel(x, low, levelh);
+        } else if (lowFirst) {
+            plotLevel(x, low, levelh);
+            plotLevel(x, high, levelh);
+        } else {
+            plotLevel(x, high, levelh);
+            plotLevel(x, low, levelh);
+        }
+    }
+
+    void plotLevel(int x, int level, int levelh) {
+        final int y = mLevelTop + levelh - ((level-mBatLow)*(levelh-1))/(mBatHigh-mBatLow);
+        if (y == mLastY) {
+            // Don't plot changes within a pixel.
+            return;
+        }
+
+        Path path;
+        if (level <= BATTERY_CRITICAL) path = mBatCriticalPath;
+        else if (level <= BATTERY_WARN) path = mBatWarnPath;
+        else path = mBatGoodPath;
+
+        if (path != mLastLinePath) {
+            if (mLastLinePath != null) {
+                mLastLinePath.lineTo(x, y);
+            }
+            path.moveTo(x, y);
+            mLastLinePath = path;
+        } else {
+            path.lineTo(x, y);
+        }
+
+        if (mCurLevelPath == null) {
+            mCurLevelPath = mBatLevelPath;
+            mCurLevelPath.moveTo(x, y);
+            mStartX = x;
+        } else {
+            mCurLevelPath.lineTo(x, y);
+        }
+        mLastX = x;
+        mLastY = y;
     }
     
     @Override
@@ -507,148 +555,136 @@ public class BatteryHistoryChart extends View {
         final long timeStart = mHistStart;
         final long timeChange = mHistEnd-mHistStart;
         
-        final int batLow = mBatLow;
-        final int batChange = mBatHigh-mBatLow;
-        
         final int levelh = h - mLevelOffset - mLevelTop;
         mLevelBottom = mLevelTop + levelh;
         
-        int x = 0, y = 0, startX = 0, lastX = -1, lastY = -1;
-        int i = 0;
-        Path curLevelPath = null;
-        Path lastLinePath = null;
+        int x = 0;
+        mCurLevelPath = null;
+        mLastLinePath = null;
+        mLastX = mLastY = -1;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWakeLock = false;
-        final int N = mNumHist;
-        if (mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.cmd == BatteryStats.HistoryItem.CMD_UPDATE) {
-                    x = (int)(((rec.time-timeStart)*w)/timeChange);
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= BATTERY_CRITICAL) path = mBatCriticalPath;
-                            else if (value <= BATTERY_WARN) path = mBatWarnPath;
-                            else path = mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                path.moveTo(x, y);
-                                lastLinePath = path;
-                            } else {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
-
-                    final boolean charging =
-                        (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                    if (charging != lastCharging) {
-                        if (charging) {
-                            mChargingPath.moveTo(x, h-mChargingOffset);
-                        } else {
-                            mChargingPath.lineTo(x, h-mChargingOffset);
-                        }
-                        lastCharging = charging;
-                    }
-
-                    final boolean screenOn =
-                        (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                    if (screenOn != lastScreenOn) {
-                        if (screenOn) {
-                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                        } else {
-                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                        }
-                        lastScreenOn = screenOn;
-                    }
-
-                    final boolean gpsOn =
-                        (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                    if (gpsOn != lastGpsOn) {
-                        if (gpsOn) {
-                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                        } else {
-                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                        }
-                        lastGpsOn = gpsOn;
-                    }
-
-                    final boolean wifiRunning =
-                        (rec.states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
-                    if (wifiRunning != lastWifiRunning) {
-                        if (wifiRunning) {
-                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                        } else {
-                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                        }
-                        lastWifiRunning = wifiRunning;
-                    }
-
-                    final boolean wakeLock =
-                        (rec.states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
-                    if (wakeLock != lastWakeLock) {
-                        if (wakeLock) {
-                            mWakeLockPath.moveTo(x, h-mWakeLockOffset);
-                        } else {
-                            mWakeLockPath.lineTo(x, h-mWakeLockOffset);
-                        }
-                        lastWakeLock = wakeLock;
-                    }
-
-                    if (mLargeMode && mHavePhoneSignal) {
-                        int bin;
-                        if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                == ServiceState.STATE_POWER_OFF) {
-                            bin = 0;
-                        } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                            bin = 1;
-                        } else {
-                            bin = (rec.states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
-                                    >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
-                            bin += 2;
-                        }
-                        mPhoneSignalChart.addTick(x, bin);
-                    }
-
-                } else if (rec.cmd != BatteryStats.HistoryItem.CMD_OVERFLOW) {
-                    if (curLevelPath != null) {
-                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                lastWakeLock, lastLinePath);
-                        lastX = lastY = -1;
-                        curLevelPath = null;
-                        lastLinePath = null;
-                        lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
-                    }
+
+        // Battery levels within the pixel column at colX, drawn once it's done.
+        int colX = -1, colLow = 0, colHigh = 0;
+        boolean colLowFirst = false;
+
+        final BatteryHistoryTimeline timeline = mTimeline;
+        final long[] times = timeline.mTimes;
+        final byte[] levels = timeline.mLevels;
+        final int[] allStates = timeline.mStates;
+        final int N = timeline.mSize;
+        for (int i=0; i<N; i++) {
+            x = (int)(((times[i]-timeStart)*w)/timeChange);
+            final int level = levels[i];
+
+            if (level == BatteryHistoryTimeline.LEVEL_BREAK) {
+                if (colX >= 0) {
+                    plotLevelColumn(colX, colLow, colHigh, colLowFirst, levelh);
+                    colX = -1;
+                }
+                if (mCurLevelPath != null) {
+                    finishPaths(x+1, h, levelh, lastCharging, lastScreenOn, lastGpsOn,
+                            lastWifiRunning, lastWakeLock);
+                    lastCharging = lastScreenOn = lastGpsOn = lastWakeLock = false;
                 }
-                
-                i++;
+                continue;
+            }
+
+            if (x != colX) {
+                // We have moved by at least a pixel.
+                if (colX >= 0) {
+                    plotLevelColumn(colX, colLow, colHigh, colLowFirst, levelh);
+                }
+                colX = x;
+                colLow = colHigh = level;
+                colLowFirst = true;
+            } else if (level < colLow) {
+                colLow = level;
+                colLowFirst = false;
+            } else if (level > colHigh) {
+                colHigh = level;
+                colLowFirst = true;
+            }
+
+            final int states = allStates[i];
+            final boolean charging =
+                (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+            if (charging != lastCharging) {
+                if (charging) {
+                    mChargingPath.moveTo(x, h-mChargingOffset);
+                } else {
+                    mChargingPath.lineTo(x, h-mChargingOffset);
+                }
+                lastCharging = charging;
+            }
+
+            final boolean screenOn =
+                (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+            if (screenOn != lastScreenOn) {
+                if (screenOn) {
+                    mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                } else {
+                    mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                }
+                lastScreenOn = screenOn;
+            }
+
+            final boolean gpsOn =
+                (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+            if (gpsOn != lastGpsOn) {
+                if (gpsOn) {
+                    mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                } else {
+                    mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+                }
+                lastGpsOn = gpsOn;
+            }
+
+            final boolean wifiRunning =
+                (states&HistoryItem.STATE_WIFI_RUNNING_FLAG) != 0;
+            if (wifiRunning != lastWifiRunning) {
+                if (wifiRunning) {
+                    mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                } else {
+                    mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
+                }
+                lastWifiRunning = wifiRunning;
+            }
+
+            final boolean wakeLock =
+                (states&HistoryItem.STATE_WAKE_LOCK_FLAG) != 0;
+            if (wakeLock != lastWakeLock) {
+                if (wakeLock) {
+                    mWakeLockPath.moveTo(x, h-mWakeLockOffset);
+                } else {
+                    mWakeLockPath.lineTo(x, h-mWakeLockOffset);
+                }
+                lastWakeLock = wakeLock;
+            }
+
+            if (mLargeMode && mHavePhoneSignal) {
+                int bin;
+                if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                        >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                        == ServiceState.STATE_POWER_OFF) {
+                    bin = 0;
+                } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                    bin = 1;
+                } else {
+                    bin = (states&HistoryItem.STATE_SIGNAL_STRENGTH_MASK)
+                            >> HistoryItem.STATE_SIGNAL_STRENGTH_SHIFT;
+                    bin += 2;
+                }
+                mPhoneSignalChart.addTick(x, bin);
             }
         }
-        
-        finishPaths(w, h, levelh, startX, lastY, curLevelPath, lastX,
-                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                lastWakeLock, lastLinePath);
+
+        if (colX >= 0) {
+            plotLevelColumn(colX, colLow, colHigh, colLowFirst, levelh);
+        }
+        finishPaths(w, h, levelh, lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                lastWakeLock);
     }
     
     @Override
@@ -17,37 +17,123 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Fragment;
+import android.app.LoaderManager.LoaderCallbacks;
+import android.content.Loader;
 import android.os.Bundle;
 import android.os.Parcel;
+import android.os.ServiceManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.FrameLayout;
 
+import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsImpl;
 import com.android.settings.R;
 
 public class BatteryHistoryDetail extends Fragment {
     public static final String EXTRA_STATS = "stats";
 
+    private static final int LOADER_STATS = 1;
+
+    /** Snapshot acquired here, released in {@link #onDestroy()}. */
+    private BatteryStatsSnapshot mSnapshot;
+    /** Snapshot delivered by the loader, which holds its reference. */
+    private BatteryStatsSnapshot mLoadedSnapshot;
     private BatteryStatsImpl mStats;
 
+    private ViewGroup mContainer;
+
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         byte[] data = getArguments().getByteArray(EXTRA_STATS);
-        Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(data, 0, data.length);
-        parcel.setDataPosition(0);
-        mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                .createFromParcel(parcel);
+        if (data != null) {
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            return;
+        }
+
+        // reuse the snapshot shown by the summary
+        mSnapshot = BatteryStatsSnapshot.acquireCurrent();
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        if (mStats == null && mSnapshot == null) {
+            // summary is gone, such as after the process was killed
+            getLoaderManager().initLoader(LOADER_STATS, null, mStatsCallbacks);
+        }
     }
-    
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        View view = inflater.inflate(R.layout.preference_batteryhistory, null);
+        // the chart can't be laid out without stats, so it's only added
+        // once they're available
+        mContainer = new FrameLayout(inflater.getContext());
+        showStats();
+        return mContainer;
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mContainer = null;
+    }
+
+    private void showStats() {
+        if (mContainer == null) return;
+
+        final BatteryStatsSnapshot snapshot = mSnapshot != null ? mSnapshot : mLoadedSnapshot;
+        if (snapshot == null && mStats == null) return;
+
+        View view = LayoutInflater.from(getActivity()).inflate(
+                R.layout.preference_batteryhistory, mContainer, false);
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
-        return view;
+        if (snapshot != null) {
+            chart.setStats(snapshot.stats, snapshot.getTimeline());
+        } else {
+            chart.setStats(mStats);
+        }
+        mContainer.removeAllViews();
+        mContainer.addView(view);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSnapshot != null) {
+            mSnapshot.release();
+            mSnapshot = null;
+        }
     }
+
+    private final LoaderCallbacks<BatteryStatsSnapshot> mStatsCallbacks =
+            new LoaderCallbacks<BatteryStatsSnapshot>() {
+        @Override
+        public Loader<BatteryStatsSnapshot> onCreateLoader(int id, Bundle args) {
+            return new BatteryStatsLoader(getActivity(), IBatteryStats.Stub.asInterface(
+                    ServiceManager.getService("batteryinfo")));
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryStatsSnapshot> loader,
+                BatteryStatsSnapshot snapshot) {
+            if (snapshot == null || snapshot == mLoadedSnapshot) {
+                return;
+            }
+            mLoadedSnapshot = snapshot;
+            showStats();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryStatsSnapshot> loader) {
+            mLoadedSnapshot = null;
+        }
+    };
 }
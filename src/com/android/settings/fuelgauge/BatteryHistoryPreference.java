@@ -18,7 +18,6 @@ package com.android.settings.fuelgauge;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import android.os.BatteryStats;
 import android.preference.Preference;
 import android.view.View;
 import android.widget.ImageView;
@@ -33,16 +32,23 @@ import com.android.settings.R;
  */
 public class BatteryHistoryPreference extends Preference {
 
-    private BatteryStats mStats;
+    private BatteryStatsSnapshot mSnapshot;
 
-    public BatteryHistoryPreference(Context context, BatteryStats stats) {
+    BatteryHistoryPreference(Context context, BatteryStatsSnapshot snapshot) {
         super(context);
         setLayoutResource(R.layout.preference_batteryhistory);
-        mStats = stats;
+        mSnapshot = snapshot;
     }
 
-    BatteryStats getStats() {
-        return mStats;
+    BatteryStatsSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    void setSnapshot(BatteryStatsSnapshot snapshot) {
+        if (snapshot != mSnapshot) {
+            mSnapshot = snapshot;
+            notifyChanged();
+        }
     }
 
     @Override
@@ -51,6 +57,7 @@ public class BatteryHistoryPreference extends Preference {
 
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        // history is decoded once per snapshot, however often this is rebound
+        chart.setStats(mSnapshot.stats, mSnapshot.getTimeline());
     }
 }
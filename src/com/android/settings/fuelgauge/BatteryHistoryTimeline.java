@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+import java.util.Arrays;
+
+/**
+ * Compact copy of {@link BatteryStats} history, decoded in a single pass.
+ * Only records where the battery level or one of the states drawn by
+ * {@link BatteryHistoryChart} changes are kept, in parallel primitive arrays,
+ * so the chart can be laid out at any width without walking history again.
+ */
+class BatteryHistoryTimeline {
+    /** Level of an entry marking the end of contiguous history, such as a reboot. */
+    static final byte LEVEL_BREAK = -1;
+
+    /** States drawn by {@link BatteryHistoryChart}; other bits are dropped. */
+    static final int STATE_MASK = HistoryItem.STATE_BATTERY_PLUGGED_FLAG
+            | HistoryItem.STATE_SCREEN_ON_FLAG
+            | HistoryItem.STATE_GPS_ON_FLAG
+            | HistoryItem.STATE_WIFI_RUNNING_FLAG
+            | HistoryItem.STATE_WAKE_LOCK_FLAG
+            | HistoryItem.STATE_PHONE_STATE_MASK
+            | HistoryItem.STATE_PHONE_SCANNING_FLAG
+            | HistoryItem.STATE_SIGNAL_STRENGTH_MASK;
+
+    int mSize;
+    long[] mTimes = new long[64];
+    byte[] mLevels = new byte[64];
+    int[] mStates = new int[64];
+
+    /** Times of the first and last update records. */
+    long mStart;
+    long mEnd;
+    /** All states seen in any update record. */
+    int mAggrStates;
+
+    private BatteryHistoryTimeline() {
+    }
+
+    /**
+     * Read all history of the given stats into a new timeline.
+     */
+    static BatteryHistoryTimeline decode(BatteryStats stats) {
+        final BatteryHistoryTimeline timeline = new BatteryHistoryTimeline();
+        if (!stats.startIteratingHistoryLocked()) {
+            return timeline;
+        }
+
+        final HistoryItem rec = new HistoryItem();
+        byte lastLevel = LEVEL_BREAK;
+        int lastStates = 0;
+        boolean pendingBreak = false;
+        while (stats.getNextHistoryLocked(rec)) {
+            if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                final int states = rec.states & STATE_MASK;
+                if (timeline.mSize == 0) {
+                    timeline.mStart = rec.time;
+                } else if (pendingBreak) {
+                    // close off the previous run where it was last updated
+                    timeline.append(timeline.mEnd, LEVEL_BREAK, 0);
+                    lastLevel = LEVEL_BREAK;
+                    lastStates = 0;
+                }
+                pendingBreak = false;
+
+                if (rec.batteryLevel != lastLevel || states != lastStates) {
+                    timeline.append(rec.time, rec.batteryLevel, states);
+                    lastLevel = rec.batteryLevel;
+                    lastStates = states;
+                }
+                timeline.mEnd = rec.time;
+                timeline.mAggrStates |= rec.states;
+
+            } else if (rec.cmd != HistoryItem.CMD_OVERFLOW) {
+                // only matters when more updates follow
+                pendingBreak = true;
+            }
+        }
+        return timeline;
+    }
+
+    private void append(long time, byte level, int states) {
+        if (mSize == mTimes.length) {
+            final int capacity = mSize * 2;
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mLevels = Arrays.copyOf(mLevels, capacity);
+            mStates = Arrays.copyOf(mStates, capacity);
+        }
+        mTimes[mSize] = time;
+        mLevels[mSize] = level;
+        mStates[mSize] = states;
+        mSize++;
+    }
+}
@@ -24,18 +24,18 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
 import android.os.BatteryStats.Uid;
-
-import java.util.ArrayList;
-import java.util.HashMap;
+import android.util.LruCache;
 
 class BatterySipper implements Comparable<BatterySipper> {
+    private static final int MAX_CACHED_UIDS = 64;
+
     final Context mContext;
     /* Cache cleared when PowerUsageSummary is destroyed */
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-    final ArrayList<BatterySipper> mRequestQueue;
-    final Handler mHandler;
+    static final LruCache<Integer, UidToDetail> sUidCache =
+            new LruCache<Integer, UidToDetail>(MAX_CACHED_UIDS);
+    /** Set when the name and icon still need to be loaded by {@link #getNameIcon()}. */
+    boolean needsNameIcon;
     String name;
     Drawable icon;
     int iconId; // For passing to the detail screen.
@@ -61,12 +61,9 @@ class BatterySipper implements Comparable<BatterySipper> {
         Drawable icon;
     }
 
-    BatterySipper(Context context, ArrayList<BatterySipper> requestQueue,
-            Handler handler, String label, DrainType drainType,
+    BatterySipper(Context context, String label, DrainType drainType,
             int iconId, Uid uid, double[] values) {
         mContext = context;
-        mRequestQueue = requestQueue;
-        mHandler = handler;
         this.values = values;
         name = label;
         this.drainType = drainType;
@@ -99,9 +96,8 @@ class BatterySipper implements Comparable<BatterySipper> {
 
     void getQuickNameIconForUid(Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
+        final UidToDetail utd = sUidCache.get(uid);
+        if (utd != null) {
             defaultPackageName = utd.packageName;
             name = utd.name;
             icon = utd.icon;
@@ -123,14 +119,12 @@ class BatterySipper implements Comparable<BatterySipper> {
         } else {
             //name = packages[0];
         }
-        synchronized (mRequestQueue) {
-            mRequestQueue.add(this);
-        }
+        needsNameIcon = true;
     }
 
     /**
-     * Sets name and icon
-     * @param uid Uid of the application
+     * Sets name and icon. Blocks on the package manager, so should be called
+     * from a worker thread.
      */
     void getNameIcon() {
         PackageManager pm = mContext.getPackageManager();
@@ -189,12 +183,11 @@ class BatterySipper implements Comparable<BatterySipper> {
                 }
             }
         }
-        final String uidString = Integer.toString(uidObj.getUid());
         UidToDetail utd = new UidToDetail();
         utd.name = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        mHandler.sendMessage(mHandler.obtainMessage(PowerUsageSummary.MSG_UPDATE_NAME_ICON, this));
+        sUidCache.put(uidObj.getUid(), utd);
+        needsNameIcon = false;
     }
 }
\ No newline at end of file
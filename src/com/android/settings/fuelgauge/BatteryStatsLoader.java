@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+
+import com.android.internal.app.IBatteryStats;
+
+/**
+ * Loader for {@link BatteryStatsSnapshot}, holding a reference to the last
+ * snapshot it delivered until it's reset.
+ */
+class BatteryStatsLoader extends AsyncTaskLoader<BatteryStatsSnapshot> {
+    private final IBatteryStats mBatteryInfo;
+
+    private BatteryStatsSnapshot mSnapshot;
+
+    public BatteryStatsLoader(Context context, IBatteryStats batteryInfo) {
+        super(context);
+        mBatteryInfo = batteryInfo;
+    }
+
+    @Override
+    public BatteryStatsSnapshot loadInBackground() {
+        return BatteryStatsSnapshot.acquire(mBatteryInfo);
+    }
+
+    @Override
+    public void deliverResult(BatteryStatsSnapshot snapshot) {
+        if (isReset()) {
+            if (snapshot != null) {
+                snapshot.release();
+            }
+            return;
+        }
+
+        final BatteryStatsSnapshot oldSnapshot = mSnapshot;
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+
+        // each load holds its own reference, even when the same snapshot
+        // was handed out again
+        if (oldSnapshot != null) {
+            oldSnapshot.release();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mSnapshot != null) {
+            super.deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null || !mSnapshot.isFresh()) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(BatteryStatsSnapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.release();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        if (mSnapshot != null) {
+            mSnapshot.release();
+            mSnapshot = null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Reference counted {@link BatteryStatsImpl} unparceled from the battery
+ * stats service, shared by the power usage screens. The most recent snapshot
+ * is handed out again while it's younger than {@link #MAX_AGE}, so moving
+ * between the summary, history and detail screens doesn't unparcel the
+ * statistics each time. It's only held weakly here, so once no screen holds
+ * it any more it can be collected.
+ */
+class BatteryStatsSnapshot {
+    private static final String TAG = "BatteryStatsSnapshot";
+
+    /** How long a snapshot may be reused before loading a new one. */
+    static final long MAX_AGE = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Object sLock = new Object();
+    private static WeakReference<BatteryStatsSnapshot> sCurrent;
+
+    final BatteryStatsImpl stats;
+    private final long mLoadedAt;
+
+    private int mRefCount;
+    private boolean mInvalid;
+    private BatteryHistoryTimeline mTimeline;
+
+    private BatteryStatsSnapshot(BatteryStatsImpl stats) {
+        this.stats = stats;
+        mLoadedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Return a fresh snapshot, loading one from the service when the current
+     * one is too old. Blocks while loading, so shouldn't be called on the main
+     * thread. Must be balanced with {@link #release()}.
+     *
+     * @return {@code null} when the service couldn't be reached.
+     */
+    static BatteryStatsSnapshot acquire(IBatteryStats batteryInfo) {
+        synchronized (sLock) {
+            final BatteryStatsSnapshot current = getCurrentLocked();
+            if (current != null && current.isFreshLocked()) {
+                current.mRefCount++;
+                return current;
+            }
+        }
+
+        final BatteryStatsImpl stats = load(batteryInfo);
+        if (stats == null) {
+            return null;
+        }
+        final BatteryStatsSnapshot snapshot = new BatteryStatsSnapshot(stats);
+        synchronized (sLock) {
+            snapshot.mRefCount++;
+            sCurrent = new WeakReference<BatteryStatsSnapshot>(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Return the current snapshot without loading, as long as it's still
+     * shown somewhere or fresh. Must be balanced with {@link #release()}.
+     *
+     * @return {@code null} when there's no snapshot worth reusing.
+     */
+    static BatteryStatsSnapshot acquireCurrent() {
+        synchronized (sLock) {
+            final BatteryStatsSnapshot current = getCurrentLocked();
+            if (current != null && !current.mInvalid
+                    && (current.mRefCount > 0 || current.isFreshLocked())) {
+                current.mRefCount++;
+                return current;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stop handing out the current snapshot, typically because the user asked
+     * for up to date statistics.
+     */
+    static void invalidate() {
+        synchronized (sLock) {
+            final BatteryStatsSnapshot current = getCurrentLocked();
+            if (current != null) {
+                current.mInvalid = true;
+                if (current.mRefCount == 0) {
+                    sCurrent = null;
+                }
+            }
+        }
+    }
+
+    private static BatteryStatsSnapshot getCurrentLocked() {
+        return sCurrent != null ? sCurrent.get() : null;
+    }
+
+    private static BatteryStatsImpl load(IBatteryStats batteryInfo) {
+        try {
+            byte[] data = batteryInfo.getStatistics();
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+            stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    private boolean isFreshLocked() {
+        return !mInvalid && SystemClock.elapsedRealtime() - mLoadedAt < MAX_AGE;
+    }
+
+    boolean isFresh() {
+        synchronized (sLock) {
+            return isFreshLocked();
+        }
+    }
+
+    /**
+     * Return history of these statistics, decoded the first time it's needed.
+     * Should only be called from the main thread.
+     */
+    BatteryHistoryTimeline getTimeline() {
+        if (mTimeline == null) {
+            mTimeline = BatteryHistoryTimeline.decode(stats);
+        }
+        return mTimeline;
+    }
+
+    void release() {
+        synchronized (sLock) {
+            mRefCount--;
+            // an unused snapshot may still be reused while fresh, as long as
+            // it hasn't been collected yet
+            if (mRefCount == 0 && getCurrentLocked() == this && !isFreshLocked()) {
+                sCurrent = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+/**
+ * Estimates power drawn by each UID from a {@link UidUsageTable}.
+ */
+interface PowerModel {
+    /**
+     * Compute power for every UID and process in the table, in mAh.
+     *
+     * @param uidPower filled with total power for each UID row.
+     * @param procPower filled with CPU power for each process row.
+     */
+    void computePower(UidUsageTable table, double[] uidPower, double[] procPower);
+}
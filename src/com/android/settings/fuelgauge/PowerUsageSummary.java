@@ -16,23 +16,23 @@
 
 package com.android.settings.fuelgauge;
 
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.Loader;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
-import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.Parcel;
 import android.os.Process;
-import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -63,14 +63,21 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
  * consumed since the last time it was unplugged.
  */
-public class PowerUsageSummary extends PreferenceFragment implements Runnable {
+public class PowerUsageSummary extends PreferenceFragment {
 
     private static final boolean DEBUG = false;
 
@@ -83,10 +90,11 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
     private static final int MENU_HELP = Menu.FIRST + 2;
 
-    private static BatteryStatsImpl sStatsXfer;
+    private static final int LOADER_STATS = 1;
 
     IBatteryStats mBatteryInfo;
     UserManager mUm;
+    BatteryStatsSnapshot mSnapshot;
     BatteryStatsImpl mStats;
     private final List<BatterySipper> mUsageList = new ArrayList<BatterySipper>();
     private final List<BatterySipper> mWifiSippers = new ArrayList<BatterySipper>();
@@ -97,12 +105,24 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
 
     private PreferenceGroup mAppListGroup;
     private Preference mBatteryStatusPref;
+    private BatteryHistoryPreference mHistoryPref;
+    private Preference mNotAvailablePref;
+    /** Rows currently shown, keyed by {@link #getRowKey(BatterySipper)}. */
+    private final HashMap<String, PowerGaugePreference> mGaugePrefs =
+            new HashMap<String, PowerGaugePreference>();
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
     private static final int MIN_POWER_THRESHOLD = 5;
     private static final int MAX_ITEMS_TO_LIST = 10;
 
+    /** Reload interval while visible; each reload takes new statistics. */
+    private static final long AUTO_REFRESH_INTERVAL = BatteryStatsSnapshot.MAX_AGE;
+
+    /** Battery level and plug state from the last battery broadcast. */
+    private int mLastBatteryLevel = -1;
+    private int mLastBatteryPlugged = -1;
+
     private long mStatsPeriod = 0;
     private double mMaxPower = 1;
     private double mTotalPower;
@@ -113,10 +133,30 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     // How much the apps together have left WIFI running.
     private long mAppWifiRunning;
 
-    /** Queue for fetching name and icon for an application */
-    private ArrayList<BatterySipper> mRequestQueue = new ArrayList<BatterySipper>();
-    private Thread mRequestThread;
-    private boolean mAbort;
+    /** Threads fetching name and icon for applications */
+    private static final int NAME_ICON_THREADS = 2;
+
+    private static final ThreadPoolExecutor sNameIconExecutor = new ThreadPoolExecutor(
+            NAME_ICON_THREADS, NAME_ICON_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(
+                            r, "BatteryUsage Icon Loader #" + mCount.getAndIncrement());
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    static {
+        sNameIconExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private volatile boolean mAbort;
+    /** Incremented for each refresh; name and icon batches from older ones are dropped. */
+    private int mRequestGeneration;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -130,8 +170,22 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 String batterySummary = context.getResources().getString(
                         R.string.power_usage_level_and_status, batteryLevel, batteryStatus);
                 mBatteryStatusPref.setTitle(batterySummary);
-                mStats = null;
-                refreshStats();
+
+                // the broadcast also goes out for voltage and temperature
+                // changes, which don't move the numbers shown here
+                final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                final int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+                final boolean changed = level != mLastBatteryLevel
+                        || plugged != mLastBatteryPlugged;
+                mLastBatteryLevel = level;
+                mLastBatteryPlugged = plugged;
+
+                // registering replays the last broadcast, which isn't news
+                if (changed && !isInitialStickyBroadcast()) {
+                    // a cached snapshot predates the change it's reacting to
+                    BatteryStatsSnapshot.invalidate();
+                    reloadStats();
+                }
             }
         }
     };
@@ -140,10 +194,6 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.power_usage_summary);
         mBatteryInfo = IBatteryStats.Stub.asInterface(
                 ServiceManager.getService("batteryinfo"));
@@ -152,6 +202,9 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mBatteryStatusPref = mAppListGroup.findPreference(KEY_BATTERY_STATUS);
         mPowerProfile = new PowerProfile(getActivity());
         setHasOptionsMenu(true);
+
+        // retained across configuration changes, and reloads when stale
+        getLoaderManager().initLoader(LOADER_STATS, null, mStatsCallbacks);
     }
 
     @Override
@@ -160,15 +213,17 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mAbort = false;
         getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        refreshStats();
+        if (mStats != null) {
+            refreshStats();
+        }
+        mHandler.sendEmptyMessageDelayed(MSG_AUTO_REFRESH, AUTO_REFRESH_INTERVAL);
     }
 
     @Override
     public void onPause() {
-        synchronized (mRequestQueue) {
-            mAbort = true;
-        }
+        mAbort = true;
         mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
+        mHandler.removeMessages(MSG_AUTO_REFRESH);
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
         super.onPause();
     }
@@ -176,21 +231,16 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        } else {
-            BatterySipper.sUidCache.clear();
+        if (!getActivity().isChangingConfigurations()) {
+            BatterySipper.sUidCache.evictAll();
         }
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            Parcel hist = Parcel.obtain();
-            mStats.writeToParcelWithoutUids(hist, 0);
-            byte[] histData = hist.marshall();
+            // the detail picks up the snapshot shown here
             Bundle args = new Bundle();
-            args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
             PreferenceActivity pa = (PreferenceActivity)getActivity();
             pa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
                     R.string.history_details_title, null, null, 0);
@@ -361,8 +411,8 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStats = null;
-                refreshStats();
+                BatteryStatsSnapshot.invalidate();
+                reloadStats();
                 return true;
             default:
                 return false;
@@ -370,14 +420,68 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
     }
 
     private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
-        mAppListGroup.addPreference(notAvailable);
+        if (mNotAvailablePref == null) {
+            mNotAvailablePref = new Preference(getActivity());
+            mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+            mAppListGroup.addPreference(mNotAvailablePref);
+        }
+    }
+
+    /**
+     * Return key identifying the row for the given sipper across refreshes.
+     */
+    private static String getRowKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        } else if (sipper.drainType == DrainType.USER) {
+            return sipper.drainType + ":" + sipper.name;
+        } else {
+            return sipper.drainType.toString();
+        }
+    }
+
+    /**
+     * Ask the loader for statistics again. A recent enough snapshot is reused
+     * unless it was invalidated.
+     */
+    private void reloadStats() {
+        final Loader<BatteryStatsSnapshot> loader = getLoaderManager().getLoader(LOADER_STATS);
+        if (loader != null) {
+            loader.onContentChanged();
+        }
     }
 
+    private final LoaderCallbacks<BatteryStatsSnapshot> mStatsCallbacks =
+            new LoaderCallbacks<BatteryStatsSnapshot>() {
+        @Override
+        public Loader<BatteryStatsSnapshot> onCreateLoader(int id, Bundle args) {
+            return new BatteryStatsLoader(getActivity(), mBatteryInfo);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<BatteryStatsSnapshot> loader,
+                BatteryStatsSnapshot snapshot) {
+            if (snapshot == null || snapshot == mSnapshot) {
+                // nothing new to show
+                return;
+            }
+            mSnapshot = snapshot;
+            mStats = snapshot.stats;
+            refreshStats();
+        }
+
+        @Override
+        public void onLoaderReset(Loader<BatteryStatsSnapshot> loader) {
+            // the loader holds the only reference
+            mSnapshot = null;
+            mStats = null;
+        }
+    };
+
     private void refreshStats() {
         if (mStats == null) {
-            load();
+            // still loading; shown once the loader delivers
+            return;
         }
         mMaxPower = 0;
         mTotalPower = 0;
@@ -385,7 +489,6 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mBluetoothPower = 0;
         mAppWifiRunning = 0;
 
-        mAppListGroup.removeAll();
         mUsageList.clear();
         mWifiSippers.clear();
         mBluetoothSippers.clear();
@@ -394,10 +497,13 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         mAppListGroup.setOrderingAsAdded(false);
 
         mBatteryStatusPref.setOrder(-2);
-        mAppListGroup.addPreference(mBatteryStatusPref);
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
+        if (mHistoryPref == null) {
+            mHistoryPref = new BatteryHistoryPreference(getActivity(), mSnapshot);
+            mHistoryPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistoryPref);
+        } else {
+            mHistoryPref.setSnapshot(mSnapshot);
+        }
         
         if (mPowerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL) < 10) {
             addNotAvailableMessage();
@@ -406,187 +512,127 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         processAppUsage();
         processMiscUsage();
 
+        // Update rows in place, so only the ones that changed are rebound
+        final ArrayList<BatterySipper> pending = new ArrayList<BatterySipper>();
+        final HashSet<String> shown = new HashSet<String>();
         Collections.sort(mUsageList);
         for (BatterySipper sipper : mUsageList) {
             if (sipper.getSortValue() < MIN_POWER_THRESHOLD) continue;
             final double percentOfTotal =  ((sipper.getSortValue() / mTotalPower) * 100);
             if (percentOfTotal < 1) continue;
-            PowerGaugePreference pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
+            final String key = getRowKey(sipper);
+            PowerGaugePreference pref = mGaugePrefs.get(key);
+            final boolean added = pref == null;
+            if (added) {
+                pref = new PowerGaugePreference(getActivity(), sipper.getIcon(), sipper);
+                pref.setKey(key);
+            } else {
+                pref.setInfo(sipper);
+            }
             final double percentOfMax = (sipper.getSortValue() * 100) / mMaxPower;
             sipper.percent = percentOfTotal;
-            pref.setTitle(sipper.name);
+            if (sipper.needsNameIcon) {
+                pending.add(sipper);
+            }
+            if (added || !sipper.needsNameIcon) {
+                // otherwise keep showing the name and icon loaded last time
+                pref.setTitle(sipper.name);
+                if (!added && sipper.uidObj != null && sipper.getIcon() != null) {
+                    pref.setIcon(sipper.getIcon());
+                }
+            }
             pref.setOrder(Integer.MAX_VALUE - (int) sipper.getSortValue()); // Invert the order
             pref.setPercent(percentOfMax, percentOfTotal);
-            if (sipper.uidObj != null) {
-                pref.setKey(Integer.toString(sipper.uidObj.getUid()));
+            if (added) {
+                mGaugePrefs.put(key, pref);
+                mAppListGroup.addPreference(pref);
             }
-            mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) break;
-        }
-        synchronized (mRequestQueue) {
-            if (!mRequestQueue.isEmpty()) {
-                if (mRequestThread == null) {
-                    mRequestThread = new Thread(this, "BatteryUsage Icon Loader");
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                }
-                mRequestQueue.notify();
+            shown.add(key);
+            if (shown.size() >= MAX_ITEMS_TO_LIST) break;
+        }
+
+        // Drop rows that are no longer shown
+        final Iterator<HashMap.Entry<String, PowerGaugePreference>> it =
+                mGaugePrefs.entrySet().iterator();
+        while (it.hasNext()) {
+            final HashMap.Entry<String, PowerGaugePreference> entry = it.next();
+            if (!shown.contains(entry.getKey())) {
+                mAppListGroup.removePreference(entry.getValue());
+                it.remove();
             }
         }
+        requestNameIcons(pending);
+    }
+
+    /**
+     * Load names and icons for the given rows on {@link #sNameIconExecutor}.
+     * Rows are split evenly between its threads, and each thread posts its
+     * share back in a single batch.
+     */
+    private void requestNameIcons(ArrayList<BatterySipper> pending) {
+        final int generation = ++mRequestGeneration;
+        mHandler.removeMessages(MSG_UPDATE_NAME_ICON);
+
+        final int count = pending.size();
+        if (count == 0) return;
+        final int batchSize = (count + NAME_ICON_THREADS - 1) / NAME_ICON_THREADS;
+        for (int start = 0; start < count; start += batchSize) {
+            final ArrayList<BatterySipper> batch = new ArrayList<BatterySipper>(
+                    pending.subList(start, Math.min(count, start + batchSize)));
+            sNameIconExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BatterySipper bs : batch) {
+                        if (mAbort) return;
+                        bs.getNameIcon();
+                    }
+                    mHandler.sendMessage(
+                            mHandler.obtainMessage(MSG_UPDATE_NAME_ICON, generation, 0, batch));
+                }
+            });
+        }
     }
 
     private void processAppUsage() {
-        SensorManager sensorManager = (SensorManager)getActivity().getSystemService(
-                Context.SENSOR_SERVICE);
         final int which = mStatsType;
-        final int speedSteps = mPowerProfile.getNumSpeedSteps();
-        final double[] powerCpuNormal = new double[speedSteps];
-        final long[] cpuSpeedStepTimes = new long[speedSteps];
-        for (int p = 0; p < speedSteps; p++) {
-            powerCpuNormal[p] = mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
-        }
-        final double averageCostPerByte = getAverageDataCost();
         long uSecTime = mStats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000, which);
         long appWakelockTime = 0;
         BatterySipper osApp = null;
         mStatsPeriod = uSecTime;
-        SparseArray<? extends Uid> uidStats = mStats.getUidStats();
-        final int NU = uidStats.size();
-        for (int iu = 0; iu < NU; iu++) {
-            Uid u = uidStats.valueAt(iu);
-            double p;
-            double power = 0;
-            double highestDrain = 0;
-            String packageWithHighestDrain = null;
-            //mUsageList.add(new AppUsage(u.getUid(), new double[] {power}));
-            Map<String, ? extends BatteryStats.Uid.Proc> processStats = u.getProcessStats();
-            long cpuTime = 0;
-            long cpuFgTime = 0;
-            long wakelockTime = 0;
-            long gpsTime = 0;
-            if (DEBUG) Log.i(TAG, "UID " + u.getUid());
-            if (processStats.size() > 0) {
-                // Process CPU time
-                for (Map.Entry<String, ? extends BatteryStats.Uid.Proc> ent
-                        : processStats.entrySet()) {
-                    Uid.Proc ps = ent.getValue();
-                    final long userTime = ps.getUserTime(which);
-                    final long systemTime = ps.getSystemTime(which);
-                    final long foregroundTime = ps.getForegroundTime(which);
-                    cpuFgTime += foregroundTime * 10; // convert to millis
-                    final long tmpCpuTime = (userTime + systemTime) * 10; // convert to millis
-                    int totalTimeAtSpeeds = 0;
-                    // Get the total first
-                    for (int step = 0; step < speedSteps; step++) {
-                        cpuSpeedStepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
-                        totalTimeAtSpeeds += cpuSpeedStepTimes[step];
-                    }
-                    if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
-                    // Then compute the ratio of time spent at each speed
-                    double processPower = 0;
-                    for (int step = 0; step < speedSteps; step++) {
-                        double ratio = (double) cpuSpeedStepTimes[step] / totalTimeAtSpeeds;
-                        processPower += ratio * tmpCpuTime * powerCpuNormal[step];
-                    }
-                    cpuTime += tmpCpuTime;
-                    if (DEBUG && processPower != 0) {
-                        Log.i(TAG, String.format("process %s, cpu power=%.2f",
-                                ent.getKey(), processPower / 1000));
-                    }
-                    power += processPower;
-                    if (packageWithHighestDrain == null
-                            || packageWithHighestDrain.startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    } else if (highestDrain < processPower
-                            && !ent.getKey().startsWith("*")) {
-                        highestDrain = processPower;
-                        packageWithHighestDrain = ent.getKey();
-                    }
-                }
-            }
-            if (cpuFgTime > cpuTime) {
-                if (DEBUG && cpuFgTime > cpuTime + 10000) {
-                    Log.i(TAG, "WARNING! Cputime is more than 10 seconds behind Foreground time");
-                }
-                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
-            }
-            power /= 1000;
-            if (DEBUG && power != 0) Log.i(TAG, String.format("total cpu power=%.2f", power));
-
-            // Process wake lock usage
-            Map<String, ? extends BatteryStats.Uid.Wakelock> wakelockStats = u.getWakelockStats();
-            for (Map.Entry<String, ? extends BatteryStats.Uid.Wakelock> wakelockEntry
-                    : wakelockStats.entrySet()) {
-                Uid.Wakelock wakelock = wakelockEntry.getValue();
-                // Only care about partial wake locks since full wake locks
-                // are canceled when the user turns the screen off.
-                BatteryStats.Timer timer = wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
-                if (timer != null) {
-                    wakelockTime += timer.getTotalTimeLocked(uSecTime, which);
-                }
+
+        SensorManager sensorManager = (SensorManager)getActivity().getSystemService(
+                Context.SENSOR_SERVICE);
+        // data cost depends on the mix of traffic in these stats
+        final PowerModel powerModel = ProfilePowerModel.fromProfile(mPowerProfile,
+                sensorManager, getAverageDataCost());
+        final UidUsageTable table = UidUsageTable.build(mStats, which, uSecTime,
+                mPowerProfile.getNumSpeedSteps());
+        final double[] uidPower = new double[table.uidCount];
+        final double[] procPower = new double[table.procCount];
+        powerModel.computePower(table, uidPower, procPower);
+
+        // Name each UID after its process with the highest drain, preferring
+        // processes that aren't shared ("*" prefixed).
+        final String[] packageWithHighestDrain = new String[table.uidCount];
+        final double[] highestDrain = new double[table.uidCount];
+        for (int i = 0; i < table.procCount; i++) {
+            final int index = table.procUid[i];
+            final String name = table.procName[i];
+            final String current = packageWithHighestDrain[index];
+            if (current == null || current.startsWith("*")
+                    || (highestDrain[index] < procPower[i] && !name.startsWith("*"))) {
+                highestDrain[index] = procPower[i];
+                packageWithHighestDrain[index] = name;
             }
-            wakelockTime /= 1000; // convert to millis
-            appWakelockTime += wakelockTime;
+        }
 
-            // Add cost of holding a wake lock
-            p = (wakelockTime
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_CPU_AWAKE)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wakelock power=%.2f", p));
-            
-            // Add cost of data traffic
-            long tcpBytesReceived = u.getTcpBytesReceived(mStatsType);
-            long tcpBytesSent = u.getTcpBytesSent(mStatsType);
-            p = (tcpBytesReceived+tcpBytesSent) * averageCostPerByte;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("tcp power=%.2f", p));
-
-            // Add cost of keeping WIFI running.
-            long wifiRunningTimeMs = u.getWifiRunningTime(uSecTime, which) / 1000;
+        for (int iu = 0; iu < table.uidCount; iu++) {
+            final Uid u = table.uidStats[iu];
+            final double power = uidPower[iu];
+            final long wakelockTime = table.wakeLockTime[iu];
+            final long wifiRunningTimeMs = table.wifiRunningTime[iu];
+            appWakelockTime += wakelockTime;
             mAppWifiRunning += wifiRunningTimeMs;
-            p = (wifiRunningTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_ON)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi running power=%.2f", p));
-
-            // Add cost of WIFI scans
-            long wifiScanTimeMs = u.getWifiScanTime(uSecTime, which) / 1000;
-            p = (wifiScanTimeMs
-                    * mPowerProfile.getAveragePower(PowerProfile.POWER_WIFI_SCAN)) / 1000;
-            power += p;
-            if (DEBUG && p != 0) Log.i(TAG, String.format("wifi scanning power=%.2f", p));
-
-            // Process Sensor usage
-            Map<Integer, ? extends BatteryStats.Uid.Sensor> sensorStats = u.getSensorStats();
-            for (Map.Entry<Integer, ? extends BatteryStats.Uid.Sensor> sensorEntry
-                    : sensorStats.entrySet()) {
-                Uid.Sensor sensor = sensorEntry.getValue();
-                int sensorHandle = sensor.getHandle();
-                BatteryStats.Timer timer = sensor.getSensorTime();
-                long sensorTime = timer.getTotalTimeLocked(uSecTime, which) / 1000;
-                double multiplier = 0;
-                switch (sensorHandle) {
-                    case Uid.Sensor.GPS:
-                        multiplier = mPowerProfile.getAveragePower(PowerProfile.POWER_GPS_ON);
-                        gpsTime = sensorTime;
-                        break;
-                    default:
-                        List<Sensor> sensorList = sensorManager.getSensorList(
-                                android.hardware.Sensor.TYPE_ALL);
-                        for (android.hardware.Sensor s : sensorList) {
-                            if (s.getHandle() == sensorHandle) {
-                                multiplier = s.getPower();
-                                break;
-                            }
-                        }
-                }
-                p = (multiplier * sensorTime) / 1000;
-                power += p;
-                if (DEBUG && p != 0) {
-                    Log.i(TAG, String.format("sensor %s power=%.2f", sensor.toString(), p));
-                }
-            }
 
             if (DEBUG) Log.i(TAG, String.format("UID %d total power=%.2f", u.getUid(), power));
 
@@ -594,16 +640,15 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
             boolean isOtherUser = false;
             final int userId = UserHandle.getUserId(u.getUid());
             if (power != 0 || u.getUid() == 0) {
-                BatterySipper app = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                        packageWithHighestDrain, DrainType.APP, 0, u,
-                        new double[] {power});
-                app.cpuTime = cpuTime;
-                app.gpsTime = gpsTime;
+                BatterySipper app = new BatterySipper(getActivity(), packageWithHighestDrain[iu],
+                        DrainType.APP, 0, u, new double[] {power});
+                app.cpuTime = table.cpuTime[iu];
+                app.gpsTime = table.gpsTime[iu];
                 app.wifiRunningTime = wifiRunningTimeMs;
-                app.cpuFgTime = cpuFgTime;
+                app.cpuFgTime = table.cpuFgTime[iu];
                 app.wakeLockTime = wakelockTime;
-                app.tcpBytesReceived = tcpBytesReceived;
-                app.tcpBytesSent = tcpBytesSent;
+                app.tcpBytesReceived = table.tcpBytesReceived[iu];
+                app.tcpBytesSent = table.tcpBytesSent[iu];
                 if (u.getUid() == Process.WIFI_UID) {
                     mWifiSippers.add(app);
                 } else if (u.getUid() == Process.BLUETOOTH_UID) {
@@ -845,43 +890,16 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
             double power) {
         if (power > mMaxPower) mMaxPower = power;
         mTotalPower += power;
-        BatterySipper bs = new BatterySipper(getActivity(), mRequestQueue, mHandler,
-                label, drainType, iconId, null, new double[] {power});
+        BatterySipper bs = new BatterySipper(getActivity(), label, drainType, iconId, null,
+                new double[] {power});
         bs.usageTime = time;
         bs.iconId = iconId;
         mUsageList.add(bs);
         return bs;
     }
 
-    private void load() {
-        try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                    .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
-        }
-    }
-
-    public void run() {
-        while (true) {
-            BatterySipper bs;
-            synchronized (mRequestQueue) {
-                if (mRequestQueue.isEmpty() || mAbort) {
-                    mRequestThread = null;
-                    return;
-                }
-                bs = mRequestQueue.remove(0);
-            }
-            bs.getNameIcon();
-        }
-    }
-
     static final int MSG_UPDATE_NAME_ICON = 1;
+    static final int MSG_AUTO_REFRESH = 2;
 
     Handler mHandler = new Handler() {
 
@@ -889,15 +907,27 @@ public class PowerUsageSummary extends PreferenceFragment implements Runnable {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_UPDATE_NAME_ICON:
-                    BatterySipper bs = (BatterySipper) msg.obj;
-                    PowerGaugePreference pgp = 
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(bs.uidObj.getUid()));
-                    if (pgp != null) {
-                        pgp.setIcon(bs.icon);
-                        pgp.setTitle(bs.name);
+                    // drop batches for rows that were since replaced
+                    if (msg.arg1 != mRequestGeneration) break;
+                    @SuppressWarnings("unchecked")
+                    ArrayList<BatterySipper> batch = (ArrayList<BatterySipper>) msg.obj;
+                    for (BatterySipper bs : batch) {
+                        PowerGaugePreference pgp =
+                                (PowerGaugePreference) findPreference(
+                                        Integer.toString(bs.uidObj.getUid()));
+                        if (pgp != null) {
+                            pgp.setIcon(bs.icon);
+                            pgp.setTitle(bs.name);
+                        }
                     }
                     break;
+                case MSG_AUTO_REFRESH:
+                    // the snapshot shown is always younger than the interval,
+                    // so it would otherwise be handed back unchanged
+                    BatteryStatsSnapshot.invalidate();
+                    reloadStats();
+                    sendEmptyMessageDelayed(MSG_AUTO_REFRESH, AUTO_REFRESH_INTERVAL);
+                    break;
             }
             super.handleMessage(msg);
         }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.BatteryStats.Uid;
+
+import com.android.internal.os.PowerProfile;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link PowerModel} costing usage by the average current of each component
+ * from the device {@link PowerProfile}.
+ */
+class ProfilePowerModel implements PowerModel {
+    private final double[] mPowerCpuSpeed;
+    private final double mPowerCpuAwake;
+    private final double mPowerWifiOn;
+    private final double mPowerWifiScan;
+    private final double mPowerGps;
+    private final double mCostPerByte;
+    /** Sensor handles and their power, sorted by handle. */
+    private final int[] mSensorHandles;
+    private final double[] mSensorPowers;
+
+    ProfilePowerModel(double[] powerCpuSpeed, double powerCpuAwake, double powerWifiOn,
+            double powerWifiScan, double powerGps, double costPerByte, int[] sensorHandles,
+            double[] sensorPowers) {
+        mPowerCpuSpeed = powerCpuSpeed;
+        mPowerCpuAwake = powerCpuAwake;
+        mPowerWifiOn = powerWifiOn;
+        mPowerWifiScan = powerWifiScan;
+        mPowerGps = powerGps;
+        mCostPerByte = costPerByte;
+
+        // sort by handle so each sensor row is a binary search
+        final int count = sensorHandles.length;
+        final long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = ((long) sensorHandles[i] << 32) | i;
+        }
+        Arrays.sort(sorted);
+        mSensorHandles = new int[count];
+        mSensorPowers = new double[count];
+        for (int i = 0; i < count; i++) {
+            final int index = (int) sorted[i];
+            mSensorHandles[i] = sensorHandles[index];
+            mSensorPowers[i] = sensorPowers[index];
+        }
+    }
+
+    /**
+     * Build a model from the device power profile and sensor list.
+     */
+    static ProfilePowerModel fromProfile(PowerProfile profile, SensorManager sensorManager,
+            double costPerByte) {
+        final int speedSteps = profile.getNumSpeedSteps();
+        final double[] powerCpuSpeed = new double[speedSteps];
+        for (int p = 0; p < speedSteps; p++) {
+            powerCpuSpeed[p] = profile.getAveragePower(PowerProfile.POWER_CPU_ACTIVE, p);
+        }
+
+        final List<Sensor> sensors = sensorManager.getSensorList(Sensor.TYPE_ALL);
+        final int[] sensorHandles = new int[sensors.size()];
+        final double[] sensorPowers = new double[sensors.size()];
+        for (int i = 0; i < sensorHandles.length; i++) {
+            final Sensor sensor = sensors.get(i);
+            sensorHandles[i] = sensor.getHandle();
+            sensorPowers[i] = sensor.getPower();
+        }
+
+        return new ProfilePowerModel(powerCpuSpeed,
+                profile.getAveragePower(PowerProfile.POWER_CPU_AWAKE),
+                profile.getAveragePower(PowerProfile.POWER_WIFI_ON),
+                profile.getAveragePower(PowerProfile.POWER_WIFI_SCAN),
+                profile.getAveragePower(PowerProfile.POWER_GPS_ON),
+                costPerByte, sensorHandles, sensorPowers);
+    }
+
+    @Override
+    public void computePower(UidUsageTable table, double[] uidPower, double[] procPower) {
+        final int uidCount = table.uidCount;
+        final int steps = Math.min(table.speedSteps, mPowerCpuSpeed.length);
+        final int stride = table.speedSteps;
+
+        // CPU, spread over speed steps
+        Arrays.fill(uidPower, 0, uidCount, 0);
+        final double[] speedTime = table.procSpeedTime;
+        for (int i = 0; i < table.procCount; i++) {
+            final int row = i * stride;
+            double power = 0;
+            for (int step = 0; step < steps; step++) {
+                power += speedTime[row + step] * mPowerCpuSpeed[step];
+            }
+            procPower[i] = power / 1000;
+            uidPower[table.procUid[i]] += power;
+        }
+
+        // wake locks, data and wifi
+        final long[] wakeLockTime = table.wakeLockTime;
+        final long[] bytesReceived = table.tcpBytesReceived;
+        final long[] bytesSent = table.tcpBytesSent;
+        final long[] wifiRunningTime = table.wifiRunningTime;
+        final long[] wifiScanTime = table.wifiScanTime;
+        for (int i = 0; i < uidCount; i++) {
+            uidPower[i] = (uidPower[i]
+                    + wakeLockTime[i] * mPowerCpuAwake
+                    + wifiRunningTime[i] * mPowerWifiOn
+                    + wifiScanTime[i] * mPowerWifiScan) / 1000
+                    + (bytesReceived[i] + bytesSent[i]) * mCostPerByte;
+        }
+
+        // sensors, including GPS
+        for (int i = 0; i < table.sensorCount; i++) {
+            final int handle = table.sensorHandle[i];
+            final double multiplier;
+            if (handle == Uid.Sensor.GPS) {
+                multiplier = mPowerGps;
+            } else {
+                final int index = Arrays.binarySearch(mSensorHandles, handle);
+                multiplier = index >= 0 ? mSensorPowers[index] : 0;
+            }
+            uidPower[table.sensorUid[i]] += (multiplier * table.sensorTime[i]) / 1000;
+        }
+    }
+}
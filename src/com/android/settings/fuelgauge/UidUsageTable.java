@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.Uid;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Per-UID usage flattened out of {@link BatteryStats} into parallel primitive
+ * arrays, so a {@link PowerModel} can cost all UIDs in tight loops. Times are
+ * in milliseconds. Processes and sensors are kept as rows pointing back at
+ * the index of their UID.
+ */
+class UidUsageTable {
+    final int speedSteps;
+
+    int uidCount;
+    int[] uids = new int[16];
+    /** Stats for each UID, or {@code null} when built by hand. */
+    Uid[] uidStats = new Uid[16];
+    long[] cpuTime = new long[16];
+    long[] cpuFgTime = new long[16];
+    long[] wakeLockTime = new long[16];
+    long[] gpsTime = new long[16];
+    long[] wifiRunningTime = new long[16];
+    long[] wifiScanTime = new long[16];
+    long[] tcpBytesReceived = new long[16];
+    long[] tcpBytesSent = new long[16];
+
+    int procCount;
+    int[] procUid = new int[16];
+    String[] procName = new String[16];
+    /** CPU time of each process at each speed step, {@link #speedSteps} per row. */
+    double[] procSpeedTime;
+
+    int sensorCount;
+    int[] sensorUid = new int[16];
+    int[] sensorHandle = new int[16];
+    long[] sensorTime = new long[16];
+
+    UidUsageTable(int speedSteps) {
+        this.speedSteps = speedSteps;
+        procSpeedTime = new double[16 * speedSteps];
+    }
+
+    /**
+     * Flatten usage of all UIDs in the given stats in a single pass.
+     */
+    static UidUsageTable build(BatteryStats stats, int which, long uSecTime, int speedSteps) {
+        final UidUsageTable table = new UidUsageTable(speedSteps);
+        final long[] stepTimes = new long[speedSteps];
+        final double[] speedTime = new double[speedSteps];
+
+        final SparseArray<? extends Uid> uidStats = stats.getUidStats();
+        final int NU = uidStats.size();
+        for (int iu = 0; iu < NU; iu++) {
+            final Uid u = uidStats.valueAt(iu);
+            final int index = table.addUid(u.getUid(), u);
+
+            // Process CPU time
+            long cpuTime = 0;
+            long cpuFgTime = 0;
+            for (Map.Entry<String, ? extends Uid.Proc> ent : u.getProcessStats().entrySet()) {
+                final Uid.Proc ps = ent.getValue();
+                cpuFgTime += ps.getForegroundTime(which) * 10; // convert to millis
+                final long tmpCpuTime =
+                        (ps.getUserTime(which) + ps.getSystemTime(which)) * 10;
+                int totalTimeAtSpeeds = 0;
+                for (int step = 0; step < speedSteps; step++) {
+                    stepTimes[step] = ps.getTimeAtCpuSpeedStep(step, which);
+                    totalTimeAtSpeeds += stepTimes[step];
+                }
+                if (totalTimeAtSpeeds == 0) totalTimeAtSpeeds = 1;
+                // Spread the CPU time over speed steps by the ratio spent at each
+                for (int step = 0; step < speedSteps; step++) {
+                    speedTime[step] = (double) stepTimes[step] / totalTimeAtSpeeds * tmpCpuTime;
+                }
+                table.addProcess(index, ent.getKey(), speedTime);
+                cpuTime += tmpCpuTime;
+            }
+            if (cpuFgTime > cpuTime) {
+                cpuTime = cpuFgTime; // Statistics may not have been gathered yet.
+            }
+            table.cpuTime[index] = cpuTime;
+            table.cpuFgTime[index] = cpuFgTime;
+
+            // Only care about partial wake locks since full wake locks
+            // are canceled when the user turns the screen off.
+            long wakeLockTime = 0;
+            for (Uid.Wakelock wakelock : u.getWakelockStats().values()) {
+                final BatteryStats.Timer timer =
+                        wakelock.getWakeTime(BatteryStats.WAKE_TYPE_PARTIAL);
+                if (timer != null) {
+                    wakeLockTime += timer.getTotalTimeLocked(uSecTime, which);
+                }
+            }
+            table.wakeLockTime[index] = wakeLockTime / 1000; // convert to millis
+
+            table.tcpBytesReceived[index] = u.getTcpBytesReceived(which);
+            table.tcpBytesSent[index] = u.getTcpBytesSent(which);
+            table.wifiRunningTime[index] = u.getWifiRunningTime(uSecTime, which) / 1000;
+            table.wifiScanTime[index] = u.getWifiScanTime(uSecTime, which) / 1000;
+
+            for (Uid.Sensor sensor : u.getSensorStats().values()) {
+                final long sensorTime =
+                        sensor.getSensorTime().getTotalTimeLocked(uSecTime, which) / 1000;
+                table.addSensor(index, sensor.getHandle(), sensorTime);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Add a row for the given UID, returning its index.
+     */
+    int addUid(int uid, Uid stats) {
+        if (uidCount == uids.length) {
+            final int capacity = uidCount * 2;
+            uids = Arrays.copyOf(uids, capacity);
+            uidStats = Arrays.copyOf(uidStats, capacity);
+            cpuTime = Arrays.copyOf(cpuTime, capacity);
+            cpuFgTime = Arrays.copyOf(cpuFgTime, capacity);
+            wakeLockTime = Arrays.copyOf(wakeLockTime, capacity);
+            gpsTime = Arrays.copyOf(gpsTime, capacity);
+            wifiRunningTime = Arrays.copyOf(wifiRunningTime, capacity);
+            wifiScanTime = Arrays.copyOf(wifiScanTime, capacity);
+            tcpBytesReceived = Arrays.copyOf(tcpBytesReceived, capacity);
+            tcpBytesSent = Arrays.copyOf(tcpBytesSent, capacity);
+        }
+        uids[uidCount] = uid;
+        uidStats[uidCount] = stats;
+        return uidCount++;
+    }
+
+    void addProcess(int uidIndex, String name, double[] speedTime) {
+        if (procCount == procUid.length) {
+            final int capacity = procCount * 2;
+            procUid = Arrays.copyOf(procUid, capacity);
+            procName = Arrays.copyOf(procName, capacity);
+            procSpeedTime = Arrays.copyOf(procSpeedTime, capacity * speedSteps);
+        }
+        procUid[procCount] = uidIndex;
+        procName[procCount] = name;
+        System.arraycopy(speedTime, 0, procSpeedTime, procCount * speedSteps, speedSteps);
+        procCount++;
+    }
+
+    void addSensor(int uidIndex, int handle, long time) {
+        if (sensorCount == sensorUid.length) {
+            final int capacity = sensorCount * 2;
+            sensorUid = Arrays.copyOf(sensorUid, capacity);
+            sensorHandle = Arrays.copyOf(sensorHandle, capacity);
+            sensorTime = Arrays.copyOf(sensorTime, capacity);
+        }
+        sensorUid[sensorCount] = uidIndex;
+        sensorHandle[sensorCount] = handle;
+        sensorTime[sensorCount] = time;
+        sensorCount++;
+        if (handle == Uid.Sensor.GPS) {
+            gpsTime[uidIndex] = time;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
@@ -42,6 +43,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_FIELDS = "fields";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -57,15 +59,30 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, null, args);
+    }
+
+    public ChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkStatsCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        // deliver recently loaded history without going back to the service
+        final ChartData cached = mCache != null ? mCache.getChartData(
+                (NetworkTemplate) mArgs.getParcelable(KEY_TEMPLATE),
+                (AppItem) mArgs.getParcelable(KEY_APP), mArgs.getInt(KEY_FIELDS)) : null;
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -73,9 +90,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
+        final int generation = mCache != null ? mCache.getGeneration() : 0;
 
         try {
-            return loadInBackground(template, app, fields);
+            final ChartData data = loadInBackground(template, app, fields);
+            if (mCache != null) {
+                mCache.putChartData(generation, template, app, fields, data);
+            }
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -91,18 +113,18 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
+            final NetworkStatsHistory[] defaults = new NetworkStatsHistory[size];
+            final NetworkStatsHistory[] foregrounds = new NetworkStatsHistory[size];
             for (int i = 0; i < size; i++) {
                 final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+                defaults[i] = mSession.getHistoryForUid(
+                        template, uid, SET_DEFAULT, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                foregrounds[i] = mSession.getHistoryForUid(
+                        template, uid, SET_FOREGROUND, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
             }
 
             if (size > 0) {
-                data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-                data.detail.recordEntireHistory(data.detailDefault);
-                data.detail.recordEntireHistory(data.detailForeground);
+                mergeHistory(data, defaults, foregrounds);
             } else {
                 data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
                 data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
@@ -126,15 +148,77 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Merge per-UID {@link NetworkStatsHistory} into the detail fields of the
+     * given {@link ChartData}. When every history has the same aligned buckets,
+     * all of them are summed in a single pass over primitive bucket arrays;
+     * otherwise they are combined with
+     * {@link NetworkStatsHistory#recordEntireHistory(NetworkStatsHistory)}.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+    private static void mergeHistory(ChartData data, NetworkStatsHistory[] defaults,
+            NetworkStatsHistory[] foregrounds) {
+        final long bucketDuration = foregrounds[0].getBucketDuration();
+        final boolean aligned = isAligned(defaults, bucketDuration)
+                && isAligned(foregrounds, bucketDuration);
+
+        if (!aligned) {
+            for (int i = 0; i < defaults.length; i++) {
+                data.detailDefault = collectHistory(defaults[i], data.detailDefault);
+                data.detailForeground = collectHistory(foregrounds[i], data.detailForeground);
+            }
+            data.detail = new NetworkStatsHistory(bucketDuration);
+            data.detail.recordEntireHistory(data.detailDefault);
+            data.detail.recordEntireHistory(data.detailForeground);
+            return;
+        }
+
+        final long start = Math.min(getStart(defaults), getStart(foregrounds));
+        final long end = Math.max(getEnd(defaults), getEnd(foregrounds));
+        final HistoryAccumulator detailDefault = new HistoryAccumulator(
+                bucketDuration, start, end);
+        final HistoryAccumulator detailForeground = new HistoryAccumulator(
+                bucketDuration, start, end);
+        for (int i = 0; i < defaults.length; i++) {
+            detailDefault.add(defaults[i]);
+            detailForeground.add(foregrounds[i]);
+        }
+        data.detailDefault = detailDefault.build();
+        data.detailForeground = detailForeground.build();
 
+        // combined detail is just the sum of both sets
+        detailDefault.add(detailForeground);
+        data.detail = detailDefault.build();
+    }
+
+    private static boolean isAligned(NetworkStatsHistory[] histories, long bucketDuration) {
+        for (NetworkStatsHistory history : histories) {
+            if (history.getBucketDuration() != bucketDuration) return false;
+            if (history.size() > 0 && history.getStart() % bucketDuration != 0) return false;
+        }
+        return true;
+    }
+
+    private static long getStart(NetworkStatsHistory[] histories) {
+        long start = Long.MAX_VALUE;
+        for (NetworkStatsHistory history : histories) {
+            start = Math.min(start, history.getStart());
+        }
+        return start;
+    }
+
+    private static long getEnd(NetworkStatsHistory[] histories) {
+        long end = Long.MIN_VALUE;
+        for (NetworkStatsHistory history : histories) {
+            end = Math.max(end, history.getEnd());
+        }
+        return end;
+    }
+
+    /**
+     * Combine {@link NetworkStatsHistory} with an existing
+     * {@link NetworkStatsHistory} if provided.
+     */
+    private static NetworkStatsHistory collectHistory(
+            NetworkStatsHistory history, NetworkStatsHistory existing) {
         if (existing != null) {
             existing.recordEntireHistory(history);
             return existing;
@@ -142,4 +226,69 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
             return history;
         }
     }
+
+    /**
+     * Sums bucket-aligned {@link NetworkStatsHistory} into primitive arrays
+     * indexed by bucket, avoiding a bucket insertion for each recorded value.
+     */
+    private static class HistoryAccumulator {
+        private final long mBucketDuration;
+        private final long mFirstBucket;
+        private final long[] mRxBytes;
+        private final long[] mTxBytes;
+
+        public HistoryAccumulator(long bucketDuration, long start, long end) {
+            mBucketDuration = bucketDuration;
+            if (start <= end) {
+                mFirstBucket = start / bucketDuration;
+                final int count = (int) ((end - 1) / bucketDuration - mFirstBucket) + 1;
+                mRxBytes = new long[count];
+                mTxBytes = new long[count];
+            } else {
+                mFirstBucket = 0;
+                mRxBytes = new long[0];
+                mTxBytes = new long[0];
+            }
+        }
+
+        public void add(NetworkStatsHistory history) {
+            NetworkStatsHistory.Entry entry = null;
+            final int size = history.size();
+            for (int i = 0; i < size; i++) {
+                entry = history.getValues(i, entry);
+                final int index = (int) (entry.bucketStart / mBucketDuration - mFirstBucket);
+                mRxBytes[index] += entry.rxBytes;
+                mTxBytes[index] += entry.txBytes;
+            }
+        }
+
+        public void add(HistoryAccumulator other) {
+            for (int i = 0; i < mRxBytes.length; i++) {
+                mRxBytes[i] += other.mRxBytes[i];
+                mTxBytes[i] += other.mTxBytes[i];
+            }
+        }
+
+        public NetworkStatsHistory build() {
+            int count = 0;
+            for (int i = 0; i < mRxBytes.length; i++) {
+                if (mRxBytes[i] != 0 || mTxBytes[i] != 0) count++;
+            }
+
+            final NetworkStatsHistory history = new NetworkStatsHistory(
+                    mBucketDuration, count, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            final NetworkStats.Entry entry = new NetworkStats.Entry();
+            for (int i = 0; i < mRxBytes.length; i++) {
+                // empty buckets are never recorded
+                if (mRxBytes[i] == 0 && mTxBytes[i] == 0) continue;
+
+                // buckets are visited in order, so each one is appended
+                final long bucketStart = (mFirstBucket + i) * mBucketDuration;
+                entry.rxBytes = mRxBytes[i];
+                entry.txBytes = mTxBytes[i];
+                history.recordData(bucketStart, bucketStart + mBucketDuration, entry);
+            }
+            return history;
+        }
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+import android.net.NetworkStatsHistory;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Projects data usage to the end of a cycle from {@link NetworkStatsHistory}.
+ * Daily totals are modeled as an exponentially weighted level with a damped
+ * trend, scaled by a factor for each day of the week. Days are folded in as
+ * they complete, so refitting the same history only costs the new days.
+ */
+public class DataUsageForecast {
+    /** Smoothing applied to the daily level. */
+    private static final double LEVEL_ALPHA = 0.3;
+    /** Smoothing applied to the day-over-day trend. */
+    private static final double TREND_BETA = 0.1;
+    /** Smoothing applied to each weekday factor. */
+    private static final double SEASON_GAMMA = 0.1;
+    /** Damping applied to the trend for each day projected. */
+    private static final double TREND_DAMPING = 0.9;
+    /** Width of the confidence band, in standard deviations (about 90%). */
+    private static final double BAND_SIGMA = 1.645;
+
+    private static final int DAYS_IN_WEEK = 7;
+    /** Weekday of 1 January 1970, counting from Sunday. */
+    private static final int EPOCH_WEEKDAY = 4;
+
+    public static class Projection {
+        /** Most likely total usage over the requested range. */
+        public final long expected;
+        /** Lower edge of the confidence band. */
+        public final long low;
+        /** Upper edge of the confidence band. */
+        public final long high;
+
+        Projection(long expected, long low, long high) {
+            this.expected = expected;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    private final TimeZone mTimeZone;
+
+    private NetworkStatsHistory mHistory;
+    /** Identifies what {@link #mHistory} measures, such as its template. */
+    private Object mKey;
+    /** First local day that hasn't been folded into the model yet. */
+    private long mNextDay = Long.MIN_VALUE;
+    private int mDays;
+
+    private double mLevel;
+    private double mTrend;
+    /** Exponentially weighted variance of daily forecast error. */
+    private double mVariance;
+    private final double[] mSeason = new double[DAYS_IN_WEEK];
+
+    public DataUsageForecast() {
+        this(TimeZone.getDefault());
+    }
+
+    public DataUsageForecast(TimeZone timeZone) {
+        mTimeZone = timeZone;
+        reset();
+    }
+
+    private void reset() {
+        mNextDay = Long.MIN_VALUE;
+        mDays = 0;
+        mLevel = 0;
+        mTrend = 0;
+        mVariance = 0;
+        Arrays.fill(mSeason, 1.0);
+    }
+
+    private long getDay(long time) {
+        return (time + mTimeZone.getOffset(time)) / DAY_IN_MILLIS;
+    }
+
+    private long getDayStart(long day) {
+        final long utcStart = day * DAY_IN_MILLIS;
+        return utcStart - mTimeZone.getOffset(utcStart);
+    }
+
+    private static int getWeekday(long day) {
+        return (int) ((day + EPOCH_WEEKDAY) % DAYS_IN_WEEK);
+    }
+
+    /**
+     * Fold all days of the given history that completed before {@code now}
+     * into the model. Passing a different history starts over.
+     */
+    public void fit(NetworkStatsHistory history, long now) {
+        fit(history, history, now);
+    }
+
+    /**
+     * Fold all days of the given history that completed before {@code now}
+     * into the model. A history with the same key is treated as a reload of
+     * the previous one, so only days not folded in yet are read; a different
+     * key starts over.
+     */
+    public void fit(NetworkStatsHistory history, Object key, long now) {
+        if (key == null || !key.equals(mKey)) {
+            mKey = key;
+            reset();
+        }
+        mHistory = history;
+        if (history == null || history.size() == 0) {
+            return;
+        }
+
+        final long firstDay = mNextDay != Long.MIN_VALUE ? mNextDay
+                : getDay(history.getStart());
+        final long today = getDay(now);
+
+        NetworkStatsHistory.Entry entry = null;
+        for (long day = firstDay; day < today; day++) {
+            entry = history.getValues(getDayStart(day), getDayStart(day + 1), now, entry);
+            update(getWeekday(day), entry.rxBytes + entry.txBytes);
+        }
+        mNextDay = Math.max(firstDay, today);
+    }
+
+    private void update(int weekday, long usage) {
+        final double season = mSeason[weekday];
+        if (mDays == 0) {
+            mLevel = usage;
+        } else {
+            final double error = usage - (mLevel + mTrend) * season;
+            mVariance = (1 - LEVEL_ALPHA) * mVariance + LEVEL_ALPHA * error * error;
+
+            final double lastLevel = mLevel;
+            final double deseasoned = season > 0 ? usage / season : usage;
+            mLevel = LEVEL_ALPHA * deseasoned + (1 - LEVEL_ALPHA) * (mLevel + mTrend);
+            mTrend = TREND_BETA * (mLevel - lastLevel) + (1 - TREND_BETA) * mTrend;
+        }
+        if (mLevel > 0) {
+            mSeason[weekday] = SEASON_GAMMA * (usage / mLevel) + (1 - SEASON_GAMMA) * season;
+        }
+        mDays++;
+    }
+
+    /**
+     * Project total usage between {@code start} and {@code end}, combining
+     * usage already recorded before {@code now} with the model forecast for
+     * the rest of the range.
+     */
+    public Projection project(long start, long end, long now) {
+        if (mHistory == null) {
+            return new Projection(0, 0, 0);
+        }
+
+        final NetworkStatsHistory.Entry entry = mHistory.getValues(
+                start, Math.min(end, now), now, null);
+        final long actual = entry.rxBytes + entry.txBytes;
+        if (mDays == 0 || end <= now) {
+            return new Projection(actual, actual, actual);
+        }
+
+        // weekday factors drift, so keep their mean at one
+        double seasonSum = 0;
+        for (double season : mSeason) {
+            seasonSum += season;
+        }
+        final double seasonScale = seasonSum > 0 ? DAYS_IN_WEEK / seasonSum : 1;
+
+        double expected = 0;
+        double variance = 0;
+        double damping = 0;
+        double dampingFactor = 1;
+
+        long time = Math.max(start, now);
+        long day = getDay(time);
+        while (time < end) {
+            final long dayStart = getDayStart(day);
+            final long dayEnd = getDayStart(day + 1);
+            final double fraction = (double) (Math.min(end, dayEnd) - time)
+                    / (dayEnd - dayStart);
+
+            dampingFactor *= TREND_DAMPING;
+            damping += dampingFactor;
+            final double level = Math.max(0, mLevel + mTrend * damping);
+            final double daily = level * mSeason[getWeekday(day)] * seasonScale;
+
+            expected += daily * fraction;
+            variance += mVariance * fraction * fraction;
+
+            time = Math.min(end, dayEnd);
+            day++;
+        }
+
+        final double band = BAND_SIGMA * Math.sqrt(variance);
+        return new Projection(actual + (long) expected,
+                actual + (long) Math.max(0, expected - band),
+                actual + (long) (expected + band));
+    }
+}
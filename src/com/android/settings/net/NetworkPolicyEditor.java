@@ -33,34 +33,77 @@ import android.net.NetworkPolicyManager;
 import android.net.NetworkTemplate;
 import android.net.wifi.WifiInfo;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.text.format.Time;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.util.Objects;
 import com.google.android.collect.Lists;
 import com.google.android.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
  * Utility class to modify list of {@link NetworkPolicy}. Specifically knows
  * about which policies can coexist. This editor offers thread safety when
  * talking with {@link NetworkPolicyManager}.
+ * <p>
+ * Edits are journaled and written behind: changes to the same template or
+ * UID are coalesced until no edits have arrived for {@link #FLUSH_DELAY},
+ * or until {@link #flush()} is called, typically when pausing. Reads through
+ * this editor always reflect its own edits, even before they are written.
+ * Must be used from the main thread.
  */
 public class NetworkPolicyEditor {
+    private static final String TAG = "NetworkPolicyEditor";
+    private static final boolean LOGD = false;
+
     // TODO: be more robust when missing policies from service
 
     public static final boolean ENABLE_SPLIT_POLICIES = false;
 
+    /** Quiet period after the last edit before pending edits are written. */
+    private static final long FLUSH_DELAY = 1000;
+
     private NetworkPolicyManager mPolicyManager;
     private ArrayList<NetworkPolicy> mPolicies = Lists.newArrayList();
 
+    /** UID policies not yet written, keyed by UID. */
+    private final SparseIntArray mPendingUidPolicies = new SparseIntArray();
+    /** UID policies handed to the service but maybe not yet applied. */
+    private final SparseIntArray mWritingUidPolicies = new SparseIntArray();
+    /** Policies need writing, either because of edits or after cleanup. */
+    private boolean mPendingPolicies;
+    /** Pending policy write includes edits. */
+    private boolean mPendingPolicyEdits;
+
+    /** Edits requested, and writes issued for them, since this editor was created. */
+    private int mEditCount;
+    private int mWriteCount;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     public NetworkPolicyEditor(NetworkPolicyManager policyManager) {
         mPolicyManager = checkNotNull(policyManager);
     }
 
     public void read() {
+        // pending edits refer to the policies about to be replaced
+        flush();
+
         final NetworkPolicy[] policies = mPolicyManager.getNetworkPolicies();
 
         boolean modified = false;
@@ -88,20 +131,140 @@ public class NetworkPolicyEditor {
         if (modified) writeAsync();
     }
 
+    /**
+     * Write all policies immediately, along with any pending edits.
+     */
     public void writeAsync() {
+        mPendingPolicies = true;
+        flush();
+    }
+
+    public void write(NetworkPolicy[] policies) {
+        mPolicyManager.setNetworkPolicies(policies);
+    }
+
+    /**
+     * Record an edit to a policy, to be written once edits stop arriving.
+     * Every policy is written at once, so edits to different templates
+     * coalesce too.
+     */
+    private void scheduleWrite() {
+        mPendingPolicies = true;
+        mPendingPolicyEdits = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        mEditCount++;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+    }
+
+    /**
+     * Write any pending edits now, coalesced into at most one write of all
+     * policies plus one write per edited UID.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (!mPendingPolicies && mPendingUidPolicies.size() == 0) return;
+
         // TODO: consider making more robust by passing through service
-        final NetworkPolicy[] policies = mPolicies.toArray(new NetworkPolicy[mPolicies.size()]);
+        final NetworkPolicy[] policies = mPendingPolicies
+                ? mPolicies.toArray(new NetworkPolicy[mPolicies.size()]) : null;
+        final SparseIntArray uidPolicies = mPendingUidPolicies.clone();
+        for (int i = 0; i < uidPolicies.size(); i++) {
+            mWritingUidPolicies.put(uidPolicies.keyAt(i), uidPolicies.valueAt(i));
+        }
+        // only count writes caused by edits, not cleanup from read()
+        mWriteCount += (mPendingPolicyEdits ? 1 : 0) + uidPolicies.size();
+
+        if (LOGD) {
+            Log.d(TAG, "flush() policies=" + (policies != null) + ", uids="
+                    + uidPolicies.size() + ", writes avoided " + getWritesAvoided());
+        }
+
+        mPendingUidPolicies.clear();
+        mPendingPolicies = false;
+        mPendingPolicyEdits = false;
+
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
-                write(policies);
+                if (policies != null) {
+                    write(policies);
+                }
+                for (int i = 0; i < uidPolicies.size(); i++) {
+                    mPolicyManager.setUidPolicy(uidPolicies.keyAt(i), uidPolicies.valueAt(i));
+                }
                 return null;
             }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                // keep anything a later flush is still writing
+                for (int i = 0; i < uidPolicies.size(); i++) {
+                    final int uid = uidPolicies.keyAt(i);
+                    if (mWritingUidPolicies.get(uid, -1) == uidPolicies.valueAt(i)) {
+                        mWritingUidPolicies.delete(uid);
+                    }
+                }
+            }
         }.execute();
     }
 
-    public void write(NetworkPolicy[] policies) {
-        mPolicyManager.setNetworkPolicies(policies);
+    /**
+     * Return number of edits that were coalesced into another write instead
+     * of causing their own.
+     */
+    public int getWritesAvoided() {
+        return mEditCount - mWriteCount;
+    }
+
+    public int getUidPolicy(int uid) {
+        int index = mPendingUidPolicies.indexOfKey(uid);
+        if (index >= 0) {
+            return mPendingUidPolicies.valueAt(index);
+        }
+        index = mWritingUidPolicies.indexOfKey(uid);
+        if (index >= 0) {
+            return mWritingUidPolicies.valueAt(index);
+        }
+        return mPolicyManager.getUidPolicy(uid);
+    }
+
+    /**
+     * Return UIDs whose policy is exactly the given one, as
+     * {@link NetworkPolicyManager#getUidsWithPolicy(int)} will once every
+     * edit made through this editor has been written.
+     */
+    public int[] getUidsWithPolicy(int policy) {
+        final SparseBooleanArray matches = new SparseBooleanArray();
+        for (int uid : mPolicyManager.getUidsWithPolicy(policy)) {
+            matches.put(uid, true);
+        }
+        overlayUidPolicies(matches, mWritingUidPolicies, policy);
+        overlayUidPolicies(matches, mPendingUidPolicies, policy);
+
+        final int[] uids = new int[matches.size()];
+        int count = 0;
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.valueAt(i)) {
+                uids[count++] = matches.keyAt(i);
+            }
+        }
+        return count == uids.length ? uids : Arrays.copyOf(uids, count);
+    }
+
+    private static void overlayUidPolicies(
+            SparseBooleanArray matches, SparseIntArray uidPolicies, int policy) {
+        for (int i = 0; i < uidPolicies.size(); i++) {
+            matches.put(uidPolicies.keyAt(i), uidPolicies.valueAt(i) == policy);
+        }
+    }
+
+    public void setUidPolicy(int uid, int policy) {
+        mPendingUidPolicies.put(uid, policy);
+        scheduleFlush();
     }
 
     public boolean hasLimitedPolicy(NetworkTemplate template) {
@@ -169,7 +332,7 @@ public class NetworkPolicyEditor {
         policy.cycleTimezone = cycleTimezone;
         policy.inferred = false;
         policy.clearSnooze();
-        writeAsync();
+        scheduleWrite();
     }
 
     public long getPolicyWarningBytes(NetworkTemplate template) {
@@ -181,7 +344,7 @@ public class NetworkPolicyEditor {
         policy.warningBytes = warningBytes;
         policy.inferred = false;
         policy.clearSnooze();
-        writeAsync();
+        scheduleWrite();
     }
 
     public long getPolicyLimitBytes(NetworkTemplate template) {
@@ -193,7 +356,7 @@ public class NetworkPolicyEditor {
         policy.limitBytes = limitBytes;
         policy.inferred = false;
         policy.clearSnooze();
-        writeAsync();
+        scheduleWrite();
     }
 
     public boolean getPolicyMetered(NetworkTemplate template) {
@@ -240,7 +403,7 @@ public class NetworkPolicyEditor {
             modified = true;
         }
 
-        if (modified) writeAsync();
+        if (modified) scheduleWrite();
     }
 
     /**
@@ -282,7 +445,7 @@ public class NetworkPolicyEditor {
     @Deprecated
     public void setMobilePolicySplit(String subscriberId, boolean split) {
         if (setMobilePolicySplitInternal(subscriberId, split)) {
-            writeAsync();
+            scheduleWrite();
         }
     }
 
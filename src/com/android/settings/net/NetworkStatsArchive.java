@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * Compact offline copy of network and per-UID {@link NetworkStatsHistory}
+ * for one {@link NetworkTemplate} and time range.
+ * <p>
+ * Each series is written as columns: bucket starts as varint deltas counted
+ * in bucket durations, then received bytes, then transmitted bytes, each as
+ * varints. Series are streamed one at a time as they are read from the
+ * stats service, and the file ends with a terminating marker.
+ */
+public class NetworkStatsArchive {
+    private static final int MAGIC = 0x4e534841; // "NSHA"
+    private static final int VERSION = 1;
+
+    private static final int SERIES_END = 0;
+    private static final int SERIES_NETWORK = 1;
+    private static final int SERIES_UID = 2;
+
+    private static final int FIELDS = FIELD_RX_BYTES | FIELD_TX_BYTES;
+
+    /** Most buckets in one series; over seven years of hourly buckets. */
+    private static final int MAX_BUCKETS = 65536;
+
+    private long mStart;
+    private long mEnd;
+    private long mBucketDuration;
+    private NetworkStatsHistory mNetwork;
+    private final SparseArray<NetworkStatsHistory> mDefault = new SparseArray<
+            NetworkStatsHistory>();
+    private final SparseArray<NetworkStatsHistory> mForeground = new SparseArray<
+            NetworkStatsHistory>();
+
+    private NetworkStatsArchive() {
+    }
+
+    /**
+     * Write network history and the history of every UID with traffic during
+     * the given range to the stream, blocking on the stats service.
+     */
+    public static void write(INetworkStatsSession session, NetworkTemplate template, long start,
+            long end, OutputStream stream) throws IOException, RemoteException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+        final NetworkStatsHistory network = session.getHistoryForNetwork(template, FIELDS);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeVarLong(out, start);
+        writeVarLong(out, end);
+        writeVarLong(out, network.getBucketDuration());
+
+        out.writeByte(SERIES_NETWORK);
+        writeHistory(out, network, start, end);
+
+        // only UIDs and sets with traffic in range have anything to write
+        final NetworkStats summary = session.getSummaryForAllUid(template, start, end, false);
+        final SparseBooleanArray written = new SparseBooleanArray();
+        NetworkStats.Entry entry = null;
+        final int size = summary != null ? summary.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = summary.getValues(i, entry);
+            if (entry.tag != TAG_NONE) continue;
+            if (entry.set != SET_DEFAULT && entry.set != SET_FOREGROUND) continue;
+
+            final int key = entry.uid * 2 + entry.set;
+            if (written.get(key)) continue;
+            written.put(key, true);
+
+            final NetworkStatsHistory history = session.getHistoryForUid(
+                    template, entry.uid, entry.set, TAG_NONE, FIELDS);
+            out.writeByte(SERIES_UID);
+            writeVarLong(out, zigzag(entry.uid));
+            writeVarLong(out, entry.set);
+            writeHistory(out, history, start, end);
+        }
+
+        out.writeByte(SERIES_END);
+        out.flush();
+    }
+
+    private static void writeHistory(DataOutputStream out, NetworkStatsHistory history,
+            long start, long end) throws IOException {
+        final long bucketDuration = history.getBucketDuration();
+        final int first = history.size() > 0 ? history.getIndexBefore(start) : 0;
+        final int last = history.size() > 0 ? history.getIndexAfter(end) : -1;
+
+        // collect non-empty buckets that start within range
+        int count = 0;
+        final long[] bucketStart = new long[Math.max(0, last - first + 1)];
+        final long[] rxBytes = new long[bucketStart.length];
+        final long[] txBytes = new long[bucketStart.length];
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = first; i <= last; i++) {
+            entry = history.getValues(i, entry);
+            if (entry.bucketStart < start || entry.bucketStart >= end) continue;
+            if (entry.rxBytes <= 0 && entry.txBytes <= 0) continue;
+            bucketStart[count] = entry.bucketStart;
+            rxBytes[count] = Math.max(0, entry.rxBytes);
+            txBytes[count] = Math.max(0, entry.txBytes);
+            count++;
+        }
+
+        if (count > MAX_BUCKETS) {
+            throw new ProtocolException("too many buckets: " + count);
+        }
+        writeVarLong(out, bucketDuration);
+        writeVarLong(out, count);
+        long lastStart = start - (start % bucketDuration);
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, (bucketStart[i] - lastStart) / bucketDuration);
+            lastStart = bucketStart[i];
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, rxBytes[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, txBytes[i]);
+        }
+    }
+
+    /**
+     * Read an archive previously written by
+     * {@link #write(INetworkStatsSession, NetworkTemplate, long, long, OutputStream)}.
+     */
+    public static NetworkStatsArchive read(InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new ProtocolException("unexpected magic");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new ProtocolException("unexpected version " + version);
+        }
+
+        final NetworkStatsArchive archive = new NetworkStatsArchive();
+        archive.mStart = readVarLong(in);
+        archive.mEnd = readVarLong(in);
+        archive.mBucketDuration = readVarLong(in);
+        if (archive.mStart < 0 || archive.mEnd < archive.mStart) {
+            throw new ProtocolException("invalid range");
+        }
+        if (archive.mBucketDuration <= 0) {
+            throw new ProtocolException("invalid bucket duration");
+        }
+
+        while (true) {
+            final int type = in.readByte();
+            switch (type) {
+                case SERIES_END:
+                    if (archive.mNetwork == null) {
+                        archive.mNetwork = new NetworkStatsHistory(archive.mBucketDuration);
+                    }
+                    return archive;
+                case SERIES_NETWORK:
+                    archive.mNetwork = readHistory(in, archive.mStart, archive.mEnd);
+                    break;
+                case SERIES_UID:
+                    final int uid = unzigzag(readVarLong(in));
+                    final long set = readVarLong(in);
+                    if (set != SET_DEFAULT && set != SET_FOREGROUND) {
+                        throw new ProtocolException("unexpected set " + set);
+                    }
+                    final NetworkStatsHistory history = readHistory(
+                            in, archive.mStart, archive.mEnd);
+                    if (set == SET_FOREGROUND) {
+                        archive.mForeground.put(uid, history);
+                    } else {
+                        archive.mDefault.put(uid, history);
+                    }
+                    break;
+                default:
+                    throw new ProtocolException("unexpected series " + type);
+            }
+        }
+    }
+
+    private static NetworkStatsHistory readHistory(DataInputStream in, long start, long end)
+            throws IOException {
+        final long bucketDuration = readVarLong(in);
+        if (bucketDuration <= 0) {
+            throw new ProtocolException("invalid bucket duration");
+        }
+        // only buckets starting within range are written, so anything more
+        // means a corrupt file; don't let it size the arrays below
+        final long maxCount = Math.min(MAX_BUCKETS, (end - start) / bucketDuration + 1);
+        final long rawCount = readVarLong(in);
+        if (rawCount < 0 || rawCount > maxCount) {
+            throw new ProtocolException("invalid bucket count " + rawCount);
+        }
+        final int count = (int) rawCount;
+
+        final long[] bucketStart = new long[count];
+        long lastStart = start - (start % bucketDuration);
+        for (int i = 0; i < count; i++) {
+            lastStart += readVarLong(in) * bucketDuration;
+            bucketStart[i] = lastStart;
+        }
+
+        final NetworkStatsHistory history = new NetworkStatsHistory(
+                bucketDuration, count, FIELDS);
+        final long[] rxBytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            rxBytes[i] = readVarLong(in);
+        }
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < count; i++) {
+            entry.rxBytes = rxBytes[i];
+            entry.txBytes = readVarLong(in);
+            history.recordData(bucketStart[i], bucketStart[i] + bucketDuration, entry);
+        }
+        return history;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ProtocolException("malformed varint");
+    }
+
+    /** Map signed UIDs onto small unsigned values for varint encoding. */
+    private static long zigzag(int value) {
+        final long signed = value;
+        return (signed << 1) ^ (signed >> 63);
+    }
+
+    private static int unzigzag(long value) {
+        return (int) ((value >>> 1) ^ -(value & 1));
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public NetworkStatsHistory getNetworkHistory() {
+        return mNetwork;
+    }
+
+    /**
+     * Build {@link ChartData} for the given UIDs as {@link ChartDataLoader}
+     * would, or for the network alone when {@code uids} is {@code null}.
+     */
+    public ChartData buildChartData(int[] uids) {
+        final ChartData data = new ChartData();
+        data.network = mNetwork;
+        if (uids == null) {
+            return data;
+        }
+
+        data.detailDefault = new NetworkStatsHistory(mBucketDuration);
+        data.detailForeground = new NetworkStatsHistory(mBucketDuration);
+        for (int uid : uids) {
+            final NetworkStatsHistory detailDefault = mDefault.get(uid);
+            if (detailDefault != null) {
+                data.detailDefault.recordEntireHistory(detailDefault);
+            }
+            final NetworkStatsHistory detailForeground = mForeground.get(uid);
+            if (detailForeground != null) {
+                data.detailForeground.recordEntireHistory(detailForeground);
+            }
+        }
+        data.detail = new NetworkStatsHistory(mBucketDuration);
+        data.detail.recordEntireHistory(data.detailDefault);
+        data.detail.recordEntireHistory(data.detailForeground);
+        return data;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.util.Objects;
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+
+/**
+ * Recently loaded {@link NetworkStats} summaries and {@link ChartData}, so
+ * that returning to a network or cycle that was just shown doesn't reload it
+ * from the stats service. Results are shared and must be treated as
+ * read-only.
+ */
+public class NetworkStatsCache {
+    private static final int MAX_ENTRIES = 16;
+
+    private static final int TYPE_SUMMARY = 1;
+    private static final int TYPE_CHART = 2;
+
+    private final LruCache<Key, Object> mCache = new LruCache<Key, Object>(MAX_ENTRIES);
+
+    /** Incremented by {@link #invalidate()}; guards against stale loads. */
+    private int mGeneration;
+
+    private static class Key {
+        final int type;
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+        final int fields;
+        final int[] uids;
+
+        Key(int type, NetworkTemplate template, long start, long end, int fields, int[] uids) {
+            this.type = type;
+            this.template = template;
+            this.start = start;
+            this.end = end;
+            this.fields = fields;
+            this.uids = uids;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(type, template, start, end, fields) * 31
+                    + Arrays.hashCode(uids);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return type == other.type && Objects.equal(template, other.template)
+                        && start == other.start && end == other.end
+                        && fields == other.fields && Arrays.equals(uids, other.uids);
+            }
+            return false;
+        }
+    }
+
+    private static Key buildSummaryKey(NetworkTemplate template, long start, long end) {
+        return new Key(TYPE_SUMMARY, template, start, end, 0, null);
+    }
+
+    private static Key buildChartKey(NetworkTemplate template, AppItem app, int fields) {
+        int[] uids = null;
+        if (app != null) {
+            final SparseBooleanArray appUids = app.uids;
+            uids = new int[appUids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = appUids.keyAt(i);
+            }
+        }
+        return new Key(TYPE_CHART, template, 0, 0, fields, uids);
+    }
+
+    /**
+     * Return the current generation, which should be captured before starting
+     * a load and handed back when storing its result.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drop all cached results, typically after the stats service has been
+     * asked to record new data.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        mCache.evictAll();
+    }
+
+    public NetworkStats getSummary(NetworkTemplate template, long start, long end) {
+        return (NetworkStats) mCache.get(buildSummaryKey(template, start, end));
+    }
+
+    public void putSummary(
+            int generation, NetworkTemplate template, long start, long end, NetworkStats stats) {
+        put(generation, buildSummaryKey(template, start, end), stats);
+    }
+
+    public ChartData getChartData(NetworkTemplate template, AppItem app, int fields) {
+        return (ChartData) mCache.get(buildChartKey(template, app, fields));
+    }
+
+    public void putChartData(
+            int generation, NetworkTemplate template, AppItem app, int fields, ChartData data) {
+        put(generation, buildChartKey(template, app, fields), data);
+    }
+
+    private void put(int generation, Key key, Object value) {
+        if (value == null) return;
+        synchronized (this) {
+            // skip results loaded before the last invalidate()
+            if (generation != mGeneration) return;
+            mCache.put(key, value);
+        }
+    }
+}
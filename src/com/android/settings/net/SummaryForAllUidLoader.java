@@ -30,6 +30,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -41,15 +42,30 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, null, args);
+    }
+
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session,
+            NetworkStatsCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        // deliver recently loaded summary without going back to the service
+        final NetworkStats cached = mCache != null ? mCache.getSummary(
+                (NetworkTemplate) mArgs.getParcelable(KEY_TEMPLATE), mArgs.getLong(KEY_START),
+                mArgs.getLong(KEY_END)) : null;
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -57,9 +73,14 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
+        final int generation = mCache != null ? mCache.getGeneration() : 0;
 
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = mSession.getSummaryForAllUid(template, start, end, false);
+            if (mCache != null) {
+                mCache.putSummary(generation, template, start, end, stats);
+            }
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
@@ -23,24 +23,59 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.users.UserUtils;
 
+import java.util.ArrayList;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ * <p>
+ * Labels are small and kept for every UID seen, and can be prefetched in
+ * bulk with {@link #prefetchLabels(int[])}. Icons are loaded separately and
+ * only the most recently used ones are kept.
  */
 public class UidDetailProvider {
+    /** Memory budget for cached icons, in bytes. */
+    private static final int ICON_CACHE_BYTES = 2 * 1024 * 1024;
+
     private final Context mContext;
+    /** Labels for each UID; {@link UidDetail#icon} is always {@code null}. */
     private final SparseArray<UidDetail> mUidDetailCache;
+    /** UIDs waiting for the label prefetch; guarded by {@link #mUidDetailCache}. */
+    private final SparseBooleanArray mPendingLabels = new SparseBooleanArray();
+    private boolean mPrefetchRunning;
+    private final LruCache<Integer, Drawable> mIconCache;
+    /** Callbacks waiting on each UID being loaded; guarded by itself. */
+    private final SparseArray<ArrayList<Callback>> mPendingCallbacks
+            = new SparseArray<ArrayList<Callback>>();
+    private final Handler mHandler;
+
+    /**
+     * Receives details that weren't cached when requested through
+     * {@link UidDetailProvider#getUidDetail(int, Callback)}.
+     */
+    public interface Callback {
+        /** Called on the main thread once label and icon are loaded. */
+        public void onUidDetailLoaded(int uid, UidDetail detail);
+    }
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -49,68 +84,230 @@ public class UidDetailProvider {
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
         mUidDetailCache = new SparseArray<UidDetail>();
+        mIconCache = new LruCache<Integer, Drawable>(ICON_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer uid, Drawable icon) {
+                return getByteCount(icon);
+            }
+        };
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    private static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        // assume 32-bit bitmap of the intrinsic size
+        return Math.max(1, icon.getIntrinsicWidth() * icon.getIntrinsicHeight() * 4);
     }
 
     public void clearCache() {
         synchronized (mUidDetailCache) {
             mUidDetailCache.clear();
+            mPendingLabels.clear();
         }
+        mIconCache.evictAll();
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
+        UidDetail labels;
         synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
+            labels = mUidDetailCache.get(uid);
         }
+        Drawable icon = mIconCache.get(uid);
 
-        if (detail != null) {
-            return detail;
+        if (labels != null && icon != null) {
+            return buildUidDetail(labels, icon);
         } else if (!blocking) {
             return null;
         }
 
-        detail = buildUidDetail(uid);
+        if (labels == null) {
+            labels = buildUidLabels(uid);
+            synchronized (mUidDetailCache) {
+                mUidDetailCache.put(uid, labels);
+            }
+        }
+        if (icon == null) {
+            icon = loadUidIcon(uid);
+            mIconCache.put(uid, icon);
+        }
+
+        return buildUidDetail(labels, icon);
+    }
+
+    /**
+     * Return details for the given UID if already cached, otherwise return
+     * {@code null} and deliver them to the callback once loaded. Requests for
+     * a UID that is already being loaded share that load.
+     */
+    public UidDetail getUidDetail(final int uid, Callback callback) {
+        final UidDetail cached = getUidDetail(uid, false);
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (mPendingCallbacks) {
+            ArrayList<Callback> callbacks = mPendingCallbacks.get(uid);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return null;
+            }
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mPendingCallbacks.put(uid, callbacks);
+        }
 
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final UidDetail detail = getUidDetail(uid, true);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final ArrayList<Callback> callbacks;
+                        synchronized (mPendingCallbacks) {
+                            callbacks = mPendingCallbacks.get(uid);
+                            mPendingCallbacks.remove(uid);
+                        }
+                        for (int i = 0; i < callbacks.size(); i++) {
+                            callbacks.get(i).onUidDetailLoaded(uid, detail);
+                        }
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Return the label for the given UID if already known, without waiting
+     * for its icon.
+     */
+    public CharSequence getUidLabel(int uid) {
+        synchronized (mUidDetailCache) {
+            final UidDetail labels = mUidDetailCache.get(uid);
+            return labels != null ? labels.label : null;
+        }
+    }
+
+    /**
+     * Load labels for all the given UIDs in the background, so they can be
+     * shown before their icons are loaded. UIDs already known are skipped,
+     * and requests made while a prefetch is running are folded into it.
+     */
+    public void prefetchLabels(int[] uids) {
         synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+            for (int uid : uids) {
+                if (mUidDetailCache.get(uid) == null) {
+                    mPendingLabels.put(uid, true);
+                }
+            }
+            if (mPendingLabels.size() == 0 || mPrefetchRunning) {
+                return;
+            }
+            mPrefetchRunning = true;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final int[] pending;
+                    synchronized (mUidDetailCache) {
+                        final int size = mPendingLabels.size();
+                        if (size == 0) {
+                            mPrefetchRunning = false;
+                            return;
+                        }
+                        pending = new int[size];
+                        for (int i = 0; i < size; i++) {
+                            pending[i] = mPendingLabels.keyAt(i);
+                        }
+                        mPendingLabels.clear();
+                    }
+                    loadUidLabels(pending);
+                }
+            }
+        });
+    }
+
+    private void loadUidLabels(int[] uids) {
+        final PackageManager pm = mContext.getPackageManager();
+
+        // a single query covers every app UID owned by exactly one package
+        final SparseArray<ApplicationInfo> apps = new SparseArray<ApplicationInfo>();
+        final SparseBooleanArray shared = new SparseBooleanArray();
+        for (ApplicationInfo info : pm.getInstalledApplications(0)) {
+            if (apps.get(info.uid) != null) {
+                shared.put(info.uid, true);
+            } else {
+                apps.put(info.uid, info);
+            }
         }
 
+        for (int uid : uids) {
+            synchronized (mUidDetailCache) {
+                if (mUidDetailCache.get(uid) != null) continue;
+            }
+
+            final ApplicationInfo info = apps.get(uid);
+            final UidDetail labels;
+            if (info != null && UserHandle.isApp(uid) && !shared.get(uid)) {
+                labels = new UidDetail();
+                labels.label = info.loadLabel(pm).toString();
+                if (TextUtils.isEmpty(labels.label)) {
+                    labels.label = Integer.toString(uid);
+                }
+            } else {
+                labels = buildUidLabels(uid);
+            }
+
+            synchronized (mUidDetailCache) {
+                mUidDetailCache.put(uid, labels);
+            }
+        }
+    }
+
+    private static UidDetail buildUidDetail(UidDetail labels, Drawable icon) {
+        final UidDetail detail = new UidDetail();
+        detail.label = labels.label;
+        detail.detailLabels = labels.detailLabels;
+        detail.icon = icon;
         return detail;
     }
 
     /**
-     * Build {@link UidDetail} object, blocking until all {@link Drawable}
-     * lookup is finished.
+     * Build {@link UidDetail} object holding only labels, blocking until
+     * {@link PackageManager} lookup is finished.
      */
-    private UidDetail buildUidDetail(int uid) {
+    private UidDetail buildUidLabels(int uid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
         final UidDetail detail = new UidDetail();
         detail.label = pm.getNameForUid(uid);
-        detail.icon = pm.getDefaultActivityIcon();
 
         // handle special case labels
         switch (uid) {
             case android.os.Process.SYSTEM_UID:
                 detail.label = res.getString(R.string.process_kernel_label);
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
             case TrafficStats.UID_REMOVED:
                 detail.label = res.getString(UserManager.supportsMultipleUsers()
                         ? R.string.data_usage_uninstalled_apps_users
                         : R.string.data_usage_uninstalled_apps);
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
             case TrafficStats.UID_TETHERING:
                 final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
                         Context.CONNECTIVITY_SERVICE);
                 detail.label = res.getString(Utils.getTetheringLabel(cm));
-                detail.icon = pm.getDefaultActivityIcon();
                 return detail;
         }
 
@@ -121,7 +318,6 @@ public class UidDetailProvider {
             final UserInfo info = um.getUserInfo(userHandle);
             if (info != null) {
                 detail.label = res.getString(R.string.running_process_item_user_label, info.name);
-                detail.icon = UserUtils.getUserIcon(um, info, res);
                 return detail;
             }
         }
@@ -133,7 +329,6 @@ public class UidDetailProvider {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
@@ -145,7 +340,6 @@ public class UidDetailProvider {
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
                     }
                 }
             }
@@ -158,4 +352,54 @@ public class UidDetailProvider {
 
         return detail;
     }
+
+    /**
+     * Load icon for the given UID, blocking until all {@link Drawable} lookup
+     * is finished.
+     */
+    private Drawable loadUidIcon(int uid) {
+        final Resources res = mContext.getResources();
+        final PackageManager pm = mContext.getPackageManager();
+
+        switch (uid) {
+            case android.os.Process.SYSTEM_UID:
+            case TrafficStats.UID_REMOVED:
+            case TrafficStats.UID_TETHERING:
+                return pm.getDefaultActivityIcon();
+        }
+
+        // Handle keys that are actually user handles
+        if (uid <= -2000) {
+            final int userHandle = (-uid) - 2000;
+            final UserManager um = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
+            final UserInfo info = um.getUserInfo(userHandle);
+            if (info != null) {
+                // users without a photo have no icon; never cache null
+                final Drawable icon = UserUtils.getUserIcon(um, info, res);
+                return icon != null ? icon : pm.getDefaultActivityIcon();
+            }
+        }
+
+        // otherwise fall back to using packagemanager icons
+        Drawable icon = pm.getDefaultActivityIcon();
+        final String[] packageNames = pm.getPackagesForUid(uid);
+        final int length = packageNames != null ? packageNames.length : 0;
+        try {
+            if (length == 1) {
+                final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
+                icon = info.loadIcon(pm);
+            } else if (length > 1) {
+                for (int i = 0; i < length; i++) {
+                    final String packageName = packageNames[i];
+                    final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+                    if (packageInfo.sharedUserLabel != 0) {
+                        icon = pm.getApplicationInfo(packageName, 0).loadIcon(pm);
+                    }
+                }
+            }
+        } catch (NameNotFoundException e) {
+        }
+
+        return icon;
+    }
 }
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.net.NetworkPolicy;
 import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
 import android.os.Handler;
 import android.os.Message;
 import android.text.Spannable;
@@ -36,6 +37,7 @@ import android.view.View;
 
 import com.android.internal.util.Objects;
 import com.android.settings.R;
+import com.android.settings.net.DataUsageForecast;
 import com.android.settings.widget.ChartSweepView.OnSweepListener;
 
 import java.util.Arrays;
@@ -68,6 +70,12 @@ public class ChartDataUsageView extends ChartView {
     /** Current maximum value of {@link #mVert}. */
     private long mVertMax;
 
+    private final DataUsageForecast mForecast = new DataUsageForecast();
+    /** Forecast for the visible range, updated when data or range changes. */
+    private DataUsageForecast.Projection mProjection;
+    private long mVisibleStart;
+    private long mVisibleEnd;
+
     public interface DataUsageChartListener {
         public void onInspectRangeChanged();
         public void onWarningChanged();
@@ -160,8 +168,19 @@ public class ChartDataUsageView extends ChartView {
     }
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
+        bindNetworkStats(stats, null);
+    }
+
+    /**
+     * Bind the given stats, which measure the given {@link NetworkTemplate}.
+     * When the template is the same as last time, the forecast picks up from
+     * where it left off rather than fitting all history again.
+     */
+    public void bindNetworkStats(NetworkStatsHistory stats, NetworkTemplate template) {
         mSeries.bindNetworkStats(stats);
         mHistory = stats;
+        mForecast.fit(stats, template != null ? template : stats, System.currentTimeMillis());
+        updateProjection();
         updateVertAxisBounds(null);
         updateEstimateVisible();
         updatePrimaryRange();
@@ -272,12 +291,53 @@ public class ChartDataUsageView extends ChartView {
         }
     }
 
+    private void updateProjection() {
+        if (mHistory != null && mVisibleEnd > mVisibleStart) {
+            mProjection = mForecast.project(
+                    mVisibleStart, mVisibleEnd, System.currentTimeMillis());
+        } else {
+            mProjection = null;
+        }
+    }
+
+    /**
+     * Return projected usage over the visible range, or {@code null} when no
+     * {@link NetworkStatsHistory} is bound.
+     */
+    public DataUsageForecast.Projection getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * Return true when usage is projected to reach {@link #mSweepWarning}
+     * before the end of the visible range, which must still be in progress.
+     */
+    public boolean isWarningProjected() {
+        return isProjectedPast(mSweepWarning);
+    }
+
+    /**
+     * Return true when usage is projected to reach {@link #mSweepLimit}
+     * before the end of the visible range, which must still be in progress.
+     */
+    public boolean isLimitProjected() {
+        return isProjectedPast(mSweepLimit);
+    }
+
+    private boolean isProjectedPast(ChartSweepView sweep) {
+        final long value = sweep.getValue();
+        return mProjection != null && sweep.isEnabled() && value >= 0
+                && mVisibleEnd > System.currentTimeMillis()
+                && mProjection.expected >= value;
+    }
+
     /**
      * Control {@link ChartNetworkSeriesView#setEstimateVisible(boolean)} based
      * on how close estimate comes to {@link #mSweepWarning}.
      */
     private void updateEstimateVisible() {
-        final long maxEstimate = mSeries.getMaxEstimate();
+        final long maxEstimate = Math.max(mSeries.getMaxEstimate(),
+                mProjection != null ? mProjection.expected : 0);
 
         // show estimate when near warning/limit
         long interestLine = Long.MAX_VALUE;
@@ -399,6 +459,9 @@ public class ChartDataUsageView extends ChartView {
      */
     public void setVisibleRange(long visibleStart, long visibleEnd) {
         final boolean changed = mHoriz.setBounds(visibleStart, visibleEnd);
+        mVisibleStart = visibleStart;
+        mVisibleEnd = visibleEnd;
+        updateProjection();
         mGrid.setBounds(visibleStart, visibleEnd);
         mSeries.setBounds(visibleStart, visibleEnd);
         mDetailSeries.setBounds(visibleStart, visibleEnd);
@@ -430,8 +493,8 @@ public class ChartDataUsageView extends ChartView {
 
         requestLayout();
         if (changed) {
-            mSeries.invalidatePath();
-            mDetailSeries.invalidatePath();
+            mSeries.invalidateBuffer();
+            mDetailSeries.invalidateBuffer();
         }
 
         updateVertAxisBounds(null);
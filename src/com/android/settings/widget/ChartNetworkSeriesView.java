@@ -27,8 +27,10 @@ import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
-import android.graphics.RectF;
 import android.net.NetworkStatsHistory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -36,6 +38,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -46,6 +50,9 @@ public class ChartNetworkSeriesView extends View {
 
     private static final boolean ESTIMATE_ENABLED = false;
 
+    /** Shared worker that turns {@link PathRequest} into {@link SeriesBuffer}. */
+    private static Handler sWorker;
+
     private ChartAxis mHoriz;
     private ChartAxis mVert;
 
@@ -56,10 +63,26 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    /** Start time of each bucket in {@link #mStats}. */
+    private long[] mBucketStart;
+    /**
+     * Total bytes of all buckets before each index of {@link #mStats}, with
+     * one extra trailing element holding the grand total.
+     */
+    private long[] mCumulative;
+    private long mBucketDuration;
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
 
+    private Handler mHandler;
+
+    /** Most recent outline delivered by the worker, drawn until replaced. */
+    private SeriesBuffer mBuffer;
+    /** Incremented for each {@link PathRequest}, so stale results are dropped. */
+    private volatile int mGeneration;
+
     private long mStart;
     private long mEnd;
 
@@ -69,6 +92,7 @@ public class ChartNetworkSeriesView extends View {
     /** Series will be extended to reach this end time. */
     private long mEndTime = Long.MIN_VALUE;
 
+    private boolean mBufferValid = false;
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
 
@@ -102,6 +126,8 @@ public class ChartNetworkSeriesView extends View {
         mPathStroke = new Path();
         mPathFill = new Path();
         mPathEstimate = new Path();
+
+        mHandler = new Handler();
     }
 
     void init(ChartAxis horiz, ChartAxis vert) {
@@ -136,8 +162,32 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
-        invalidatePath();
-        invalidate();
+        buildCumulative();
+        invalidateBuffer();
+    }
+
+    /**
+     * Build prefix sums over the bound {@link NetworkStatsHistory}, so that
+     * the total of any bucket range can be found in constant time.
+     */
+    private void buildCumulative() {
+        if (mStats == null) {
+            mBucketStart = null;
+            mCumulative = null;
+            return;
+        }
+
+        final int size = mStats.size();
+        mBucketStart = new long[size];
+        mCumulative = new long[size + 1];
+        mBucketDuration = mStats.getBucketDuration();
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStart[i] = entry.bucketStart;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
     }
 
     public void setBounds(long start, long end) {
@@ -155,139 +205,351 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Rebuild {@link Path} objects from the existing {@link #mBuffer} on the
+     * next draw, for when only {@link #mVert} has changed.
+     */
     public void invalidatePath() {
         mPathValid = false;
+        invalidate();
+    }
+
+    /**
+     * Request a new {@link #mBuffer} from {@link #sWorker} on the next draw,
+     * for when the bound stats or {@link #mHoriz} have changed. Until it
+     * arrives, {@link #getMaxVisible()} falls back to the raw data.
+     */
+    void invalidateBuffer() {
+        mBufferValid = false;
         mMax = 0;
+        mMaxEstimate = 0;
         invalidate();
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (w != oldw) {
+            invalidateBuffer();
+        } else if (h != oldh) {
+            invalidatePath();
+        }
+    }
+
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            final HandlerThread thread = new HandlerThread(
+                    TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
+
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Snapshot everything needed to outline the currently bound
+     * {@link NetworkStatsHistory}, and generate it on {@link #sWorker}. The
+     * existing {@link #mBuffer} keeps being drawn until the result arrives.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
+    private void requestBuffer() {
+        mBufferValid = true;
+        final int generation = ++mGeneration;
 
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
+        final int width = getWidth();
 
         // bail when not enough stats to render
-        if (mStats == null || mStats.size() < 2) {
+        if (mStats == null || mStats.size() < 2 || width <= 0) {
+            swapBuffer(null);
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
+        final PathRequest req = new PathRequest();
+        req.stats = mStats;
+        req.bucketStart = mBucketStart;
+        req.cumulative = mCumulative;
+        req.bucketDuration = mBucketDuration;
+        req.start = mStart;
+        req.end = mEnd;
+        req.endTime = mEndTime;
+        req.columnTimes = new long[width + 1];
+        for (int x = 0; x <= width; x++) {
+            req.columnTimes[x] = mHoriz.convertToValue(x);
+        }
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                // skip work that has already been superseded
+                if (generation != mGeneration) return;
+
+                final SeriesBuffer buffer = generateBuffer(req);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            swapBuffer(buffer);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+    private void swapBuffer(SeriesBuffer buffer) {
+        mBuffer = buffer;
+        mMax = buffer != null ? buffer.max : 0;
+        mMaxEstimate = buffer != null ? buffer.maxEstimate : 0;
+        mPathValid = false;
+        invalidate();
+    }
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
+    /**
+     * Immutable request for {@link #generateBuffer(PathRequest)}, captured on
+     * the UI thread so the worker never touches the mutable {@link ChartAxis}.
+     */
+    private static class PathRequest {
+        NetworkStatsHistory stats;
+        long[] bucketStart;
+        long[] cumulative;
+        long bucketDuration;
+        long start;
+        long end;
+        long endTime;
+        /** Time at each pixel column, including the right edge. */
+        long[] columnTimes;
+
+        /**
+         * Convert time into a horizontal point by interpolating between the
+         * sampled {@link #columnTimes}.
+         */
+        float convertToPoint(long time) {
+            final long[] times = columnTimes;
+            int i = Arrays.binarySearch(times, time);
+            if (i >= 0) {
+                return i;
+            }
+            i = Math.min(Math.max(-i - 2, 0), times.length - 2);
+            final long span = times[i + 1] - times[i];
+            return span != 0 ? i + (float) (time - times[i]) / span : i;
+        }
 
-        long totalData = 0;
+        /**
+         * Return total bytes from the start of bucket {@code first} up to the
+         * given time, treating traffic as spread evenly across each bucket and
+         * ignoring buckets after {@code last}.
+         */
+        long getCumulativeAt(long time, int first, int last) {
+            int i = Arrays.binarySearch(bucketStart, first, last + 1, time);
+            if (i < 0) {
+                // index of bucket starting before the requested time
+                i = -i - 2;
+            }
+            if (i < first) {
+                return 0;
+            }
 
-        NetworkStatsHistory.Entry entry = null;
+            final long before = cumulative[i] - cumulative[first];
+            final long bucketBytes = cumulative[i + 1] - cumulative[i];
+            final long offset = time - bucketStart[i];
+            if (offset >= bucketDuration) {
+                return before + bucketBytes;
+            } else {
+                return before + (long) ((double) bucketBytes * offset / bucketDuration);
+            }
+        }
+    }
 
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
+    /**
+     * Series outline as horizontal points and cumulative bytes, which are
+     * mapped through {@link #mVert} when building {@link Path} objects.
+     */
+    private static class SeriesBuffer {
+        final float[] x;
+        final long[] bytes;
+        final int count;
+        final float[] estimateX;
+        final long[] estimateBytes;
+        final int estimateCount;
+        final long max;
+        final long maxEstimate;
+
+        SeriesBuffer(float[] x, long[] bytes, int count, float[] estimateX,
+                long[] estimateBytes, int estimateCount, long max, long maxEstimate) {
+            this.x = x;
+            this.bytes = bytes;
+            this.count = count;
+            this.estimateX = estimateX;
+            this.estimateBytes = estimateBytes;
+            this.estimateCount = estimateCount;
+            this.max = max;
+            this.maxEstimate = maxEstimate;
+        }
+    }
 
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
+    /**
+     * Generate series outline based on the {@link NetworkStatsHistory} data
+     * captured in the given request. Called on {@link #sWorker}.
+     */
+    private static SeriesBuffer generateBuffer(PathRequest req) {
+        if (LOGD) Log.d(TAG, "generateBuffer()");
 
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
+        final int width = req.columnTimes.length - 1;
 
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
+        // every column plus the first bucket, last bucket and extension
+        final float[] pointX = new float[width + 4];
+        final long[] pointBytes = new long[width + 4];
+        int count = 0;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+        float lastX = 0;
+        long lastBytes = 0;
 
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
 
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
+        // find first bucket that ends on screen; everything is counted from
+        // its start, so the series always begins at zero.
+        final long screenStart = req.columnTimes[0];
+        int first = req.stats.getIndexBefore(req.start);
+        final int last = req.stats.getIndexAfter(req.end);
+        int firstOnScreen = Arrays.binarySearch(
+                req.bucketStart, first, last + 1, screenStart - req.bucketDuration);
+        if (firstOnScreen < 0) {
+            firstOnScreen = -firstOnScreen - 1;
+        }
+        first = Math.max(first, firstOnScreen);
 
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+        long totalData = 0;
+        long lastTime = screenStart;
+
+        if (first <= last) {
+            totalData = req.cumulative[last + 1] - req.cumulative[first];
+            lastTime = req.bucketStart[last] + req.bucketDuration;
+
+            // Sample the cumulative series once per pixel column instead of
+            // once per bucket. Since it never decreases, the value at each
+            // column edge is also the min and max of everything in between.
+            final float firstX = req.convertToPoint(req.bucketStart[first]);
+            final float endX = req.convertToPoint(lastTime);
+            final int startColumn = (int) Math.max(0, Math.ceil(firstX));
+            final int endColumn = (int) Math.min(width, Math.floor(endX));
+
+            if (firstX > 0) {
+                pointX[count] = firstX;
+                pointBytes[count++] = 0;
+            }
+            for (int x = startColumn; x <= endColumn; x++) {
+                pointX[count] = x;
+                pointBytes[count++] = req.getCumulativeAt(req.columnTimes[x], first, last);
+            }
 
+            // always draw to end of last bucket
             lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
+            lastBytes = totalData;
+            pointX[count] = lastX;
+            pointBytes[count++] = lastBytes;
         }
 
         // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
-        }
-
-        if (LOGD) {
-            final RectF bounds = new RectF();
-            mPathFill.computeBounds(bounds, true);
-            Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+        if (lastTime < req.endTime) {
+            lastX = req.convertToPoint(req.endTime);
+            pointX[count] = lastX;
+            pointBytes[count++] = lastBytes;
         }
 
-        // drop to bottom of graph from current location
-        mPathFill.lineTo(lastX, height);
-        mPathFill.lineTo(0, height);
+        if (LOGD) Log.d(TAG, "generateBuffer() produced " + count + " points and totalData="
+                + totalData);
 
-        mMax = totalData;
+        float[] estimateX = null;
+        long[] estimateBytes = null;
+        int estimateCount = 0;
+        long maxEstimate = 0;
 
         if (ESTIMATE_ENABLED) {
-            // build estimated data
-            mPathEstimate.moveTo(lastX, lastY);
+            final NetworkStatsHistory stats = req.stats;
+            NetworkStatsHistory.Entry entry = null;
 
+            // build estimated data
             final long now = System.currentTimeMillis();
-            final long bucketDuration = mStats.getBucketDuration();
+            final long bucketDuration = stats.getBucketDuration();
+            final long screenEnd = req.columnTimes[width];
+            final int maxCount = (int) Math.max(0, (screenEnd - lastTime) / bucketDuration) + 2;
+            estimateX = new float[maxCount];
+            estimateBytes = new long[maxCount];
+            estimateX[estimateCount] = lastX;
+            estimateBytes[estimateCount++] = totalData;
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+            entry = stats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
             long futureTime = 0;
-            while (lastX < width) {
+            while (lastX < width && estimateCount < maxCount) {
                 futureTime += bucketDuration;
 
                 // short window is day average last week
                 final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
-                entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
+                entry = stats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
                 final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                         / entry.bucketDuration;
 
                 totalData += (longWindow * 7 + shortWindow * 3) / 10;
 
-                lastX = mHoriz.convertToPoint(lastTime + futureTime);
-                lastY = mVert.convertToPoint(totalData);
-
-                mPathEstimate.lineTo(lastX, lastY);
+                lastX = req.convertToPoint(lastTime + futureTime);
+                estimateX[estimateCount] = lastX;
+                estimateBytes[estimateCount++] = totalData;
             }
 
-            mMaxEstimate = totalData;
+            maxEstimate = totalData;
         }
 
-        invalidate();
+        return new SeriesBuffer(pointX, pointBytes, count, estimateX, estimateBytes,
+                estimateCount, lastBytes, maxEstimate);
+    }
+
+    /**
+     * Erase any existing {@link Path} and rebuild it from {@link #mBuffer}
+     * using the current {@link #mVert} scale.
+     */
+    private void generatePath() {
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
+
+        final SeriesBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+
+        final int height = getHeight();
+
+        float lastX = 0;
+        float lastY = height;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < buffer.count; i++) {
+            lastX = buffer.x[i];
+            lastY = mVert.convertToPoint(buffer.bytes[i]);
+            mPathStroke.lineTo(lastX, lastY);
+            mPathFill.lineTo(lastX, lastY);
+        }
+
+        // drop to bottom of graph from current location
+        mPathFill.lineTo(lastX, height);
+        mPathFill.lineTo(0, height);
+
+        if (buffer.estimateCount > 0) {
+            mPathEstimate.moveTo(buffer.estimateX[0],
+                    mVert.convertToPoint(buffer.estimateBytes[0]));
+            for (int i = 1; i < buffer.estimateCount; i++) {
+                mPathEstimate.lineTo(buffer.estimateX[i],
+                        mVert.convertToPoint(buffer.estimateBytes[i]));
+            }
+        }
     }
 
     public void setEndTime(long endTime) {
@@ -318,6 +580,9 @@ public class ChartNetworkSeriesView extends View {
     protected void onDraw(Canvas canvas) {
         int save;
 
+        if (!mBufferValid) {
+            requestBuffer();
+        }
         if (!mPathValid) {
             generatePath();
         }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for the hot paths of {@link ApplicationsState}, driven by
+ * synthetic package sets.  Results are written to the log under
+ * {@link #TAG} as throughput and allocations per operation, e.g.:
+ *
+ *   adb shell am instrument -w -e class \
+ *       com.android.settings.applications.ApplicationsStateBenchmark \
+ *       com.android.settings.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class ApplicationsStateBenchmark extends AndroidTestCase {
+    private static final String TAG = "ApplicationsStateBenchmark";
+
+    private static final int[] PACKAGE_COUNTS = { 100, 1000, 10000 };
+    // Roughly how long each measurement should run for.
+    private static final long TARGET_NANOS = 500 * 1000 * 1000L;
+
+    private static final String[] WORDS = {
+        "mail", "maps", "music", "camera", "clock", "calendar", "notes", "photo",
+        "video", "chat", "browser", "weather", "news", "radio", "game", "play",
+    };
+
+    private static final ApplicationsState.AppFilter[] FILTERS = {
+        ApplicationsState.THIRD_PARTY_FILTER,
+        ApplicationsState.ON_SD_CARD_FILTER,
+        ApplicationsState.DISABLED_FILTER,
+        ApplicationsState.ALL_ENABLED_FILTER,
+    };
+    private static final String[] FILTER_NAMES = {
+        "thirdParty", "onSdCard", "disabled", "allEnabled",
+    };
+
+    private static final ArrayList<Comparator<AppEntry>> COMPARATORS
+            = new ArrayList<Comparator<AppEntry>>();
+    static {
+        COMPARATORS.add(ApplicationsState.ALPHA_COMPARATOR);
+        COMPARATORS.add(ApplicationsState.SIZE_COMPARATOR);
+        COMPARATORS.add(ApplicationsState.INTERNAL_SIZE_COMPARATOR);
+        COMPARATORS.add(ApplicationsState.EXTERNAL_SIZE_COMPARATOR);
+    }
+    private static final String[] COMPARATOR_NAMES = {
+        "alpha", "size", "internalSize", "externalSize",
+    };
+
+    private ApplicationsState mState;
+
+    private static final ApplicationsState.Callbacks NO_CALLBACKS
+            = new ApplicationsState.Callbacks() {
+        public void onRunningStateChanged(boolean running) {}
+        public void onPackageListChanged() {}
+        public void onRebuildComplete(ArrayList<AppEntry> apps) {}
+        public void onRebuildDiff(ArrayList<AppEntry> apps, ApplicationsState.RebuildDiff diff) {}
+        public void onPackageIconChanged() {}
+        public void onPackageSizeChanged(String packageName) {}
+        public void onAllSizesComputed() {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mState = ApplicationsState.getInstance(
+                (Application) getContext().getApplicationContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.setApplicationsForTest(null);
+        super.tearDown();
+    }
+
+    static ArrayList<ApplicationInfo> createApplications(int count) {
+        Random random = new Random(count);
+        ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(count);
+        for (int i=0; i<count; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.bench." + WORDS[random.nextInt(WORDS.length)]
+                    + WORDS[random.nextInt(WORDS.length)] + i;
+            info.sourceDir = "/nonexistent/" + info.packageName + ".apk";
+            info.enabled = random.nextInt(10) != 0;
+            info.enabledSetting = info.enabled ? 0
+                    : android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+            info.flags = ApplicationInfo.FLAG_INSTALLED;
+            if (random.nextBoolean()) {
+                info.flags |= ApplicationInfo.FLAG_SYSTEM;
+            }
+            apps.add(info);
+        }
+        return apps;
+    }
+
+    /**
+     * Runs a block repeatedly for about TARGET_NANOS and logs how many
+     * operations per second it managed and what each one allocated.
+     */
+    private abstract static class Measurement {
+        final String mName;
+
+        Measurement(String name) {
+            mName = name;
+        }
+
+        // Runs one operation; returns how many units of work it covered.
+        abstract int run() throws Exception;
+
+        void measure() throws Exception {
+            // Warm up so the JIT and any lazily built state don't count.
+            run();
+            Debug.resetGlobalAllocCount();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            long ops = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                ops += run();
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < TARGET_NANOS);
+            Debug.stopAllocCounting();
+            Log.i(TAG, String.format("%-40s %12.1f ops/s %10.2f allocs/op %12.1f bytes/op",
+                    mName, ops * 1e9 / elapsed,
+                    Debug.getGlobalAllocCount() / (double) ops,
+                    Debug.getGlobalAllocSize() / (double) ops));
+        }
+    }
+
+    public void testComparators() throws Exception {
+        for (final int count : PACKAGE_COUNTS) {
+            mState.setApplicationsForTest(createApplications(count));
+            final ArrayList<AppEntry> entries = new ArrayList<AppEntry>(
+                    mState.mEntriesMap.values());
+            for (int i=0; i<COMPARATORS.size(); i++) {
+                final Comparator<AppEntry> comparator = COMPARATORS.get(i);
+                new Measurement("sort/" + COMPARATOR_NAMES[i] + "/" + count) {
+                    @Override
+                    int run() {
+                        ArrayList<AppEntry> copy = new ArrayList<AppEntry>(entries);
+                        Collections.shuffle(copy, new Random(count));
+                        Collections.sort(copy, comparator);
+                        return 1;
+                    }
+                }.measure();
+            }
+        }
+    }
+
+    public void testFilters() throws Exception {
+        for (final int count : PACKAGE_COUNTS) {
+            final ArrayList<ApplicationInfo> apps = createApplications(count);
+            for (int i=0; i<FILTERS.length; i++) {
+                final ApplicationsState.AppFilter filter = FILTERS[i];
+                new Measurement("filter/" + FILTER_NAMES[i] + "/" + count) {
+                    @Override
+                    int run() {
+                        filter.init();
+                        for (int j=0; j<apps.size(); j++) {
+                            filter.filterApp(apps.get(j));
+                        }
+                        return 1;
+                    }
+                }.measure();
+            }
+        }
+    }
+
+    public void testGetEntryLocked() throws Exception {
+        for (final int count : PACKAGE_COUNTS) {
+            final ArrayList<ApplicationInfo> apps = createApplications(count);
+            mState.setApplicationsForTest(apps);
+            new Measurement("getEntryLocked/" + count) {
+                @Override
+                int run() {
+                    synchronized (mState.mEntriesMap) {
+                        for (int j=0; j<apps.size(); j++) {
+                            mState.getEntryLocked(apps.get(j));
+                        }
+                    }
+                    return apps.size();
+                }
+            }.measure();
+        }
+    }
+
+    public void testAddRemovePackage() throws Exception {
+        for (final int count : PACKAGE_COUNTS) {
+            final ArrayList<ApplicationInfo> apps = createApplications(count);
+            // Not resumed, as in testRebuild(); the session is only there so
+            // that changed packages are recorded as they would be for a
+            // visible list.
+            final ApplicationsState.Session session = mState.newSession(NO_CALLBACKS);
+            try {
+                mState.setApplicationsForTest(apps);
+                new Measurement("removeAddPackage/" + count) {
+                    int mNext;
+
+                    @Override
+                    int run() {
+                        ApplicationInfo info = apps.get(mNext++ % apps.size());
+                        synchronized (mState.mEntriesMap) {
+                            assertTrue(mState.removePackageLocked(info.packageName));
+                            assertTrue(mState.addApplicationInfoLocked(info));
+                        }
+                        return 1;
+                    }
+                }.measure();
+            } finally {
+                mState.setApplicationsForTest(null);
+                session.release();
+            }
+        }
+    }
+
+    public void testRebuild() throws Exception {
+        for (final int count : PACKAGE_COUNTS) {
+            // Not resumed: that would start loading the real package list
+            // behind the synthetic one.
+            final ApplicationsState.Session session = mState.newSession(NO_CALLBACKS);
+            try {
+                mState.setApplicationsForTest(createApplications(count));
+                for (int i=0; i<COMPARATORS.size(); i++) {
+                    final Comparator<AppEntry> comparator = COMPARATORS.get(i);
+                    new Measurement("rebuild/" + COMPARATOR_NAMES[i] + "/" + count) {
+                        @Override
+                        int run() {
+                            // Force a full rebuild each time rather than an
+                            // empty incremental one.
+                            synchronized (mState.mEntriesMap) {
+                                session.mFullRebuildNeeded = true;
+                            }
+                            ArrayList<AppEntry> result = session.rebuildForTest(
+                                    ApplicationsState.ALL_ENABLED_FILTER, comparator);
+                            assertNotNull(result);
+                            return 1;
+                        }
+                    }.measure();
+                }
+            } finally {
+                mState.setApplicationsForTest(null);
+                session.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class ApplicationsStateTest extends AndroidTestCase {
+    private static final int APP_COUNT = 50;
+    private static final int ICONS_IN_BUDGET = 4;
+
+    private ApplicationsState mState;
+    private AppIconCache mOriginalIconCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mState = ApplicationsState.getInstance(
+                (Application) getContext().getApplicationContext());
+        mOriginalIconCache = mState.mIconCache;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.setApplicationsForTest(null);
+        mState.setIconCacheForTest(mOriginalIconCache);
+        super.tearDown();
+    }
+
+    public void testIconPrefetchMovesOnToSizesWhenCacheIsFull() {
+        // Point every app at a real apk so that its icon gets loaded; the
+        // made up package names all get the default icon.
+        final ApplicationInfo self = getContext().getApplicationInfo();
+        final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(APP_COUNT);
+        for (int i=0; i<APP_COUNT; i++) {
+            ApplicationInfo info = new ApplicationInfo(self);
+            info.packageName = "com.android.settings.tests.icon" + i;
+            apps.add(info);
+        }
+        final int iconBytes = AppIconCache.getByteCount(
+                getContext().getPackageManager().getDefaultActivityIcon());
+        mState.setIconCacheForTest(new AppIconCache(iconBytes * ICONS_IN_BUDGET));
+        mState.setApplicationsForTest(apps);
+
+        // Each batch that asks for more is followed by MSG_LOAD_ICONS again;
+        // the last one is followed by MSG_LOAD_SIZES.
+        int batches = 0;
+        while (mState.mBackgroundHandler.loadIconsBatch()) {
+            batches++;
+            assertTrue("icon prefetch never moved on to sizes", batches <= APP_COUNT);
+        }
+        assertTrue(mState.mIconCache.isFull());
+        assertTrue(batches <= ICONS_IN_BUDGET);
+    }
+}
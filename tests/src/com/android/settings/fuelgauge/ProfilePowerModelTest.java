@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats.Uid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ProfilePowerModelTest extends AndroidTestCase {
+    private static final double DELTA = 1e-9;
+
+    private static final int SENSOR_ACCEL = 3;
+    private static final int SENSOR_LIGHT = 1;
+
+    private static ProfilePowerModel buildModel() {
+        return new ProfilePowerModel(new double[] { 100, 200 }, 50, 20, 10, 90, 0.001,
+                new int[] { SENSOR_ACCEL, SENSOR_LIGHT }, new double[] { 0.5, 0.2 });
+    }
+
+    public void testCpuSpeedSteps() {
+        final UidUsageTable table = new UidUsageTable(2);
+        final int app = table.addUid(10001, null);
+        table.addProcess(app, "com.example.a", new double[] { 1000, 3000 });
+        table.addProcess(app, "com.example.b", new double[] { 2000, 0 });
+
+        final double[] uidPower = new double[table.uidCount];
+        final double[] procPower = new double[table.procCount];
+        buildModel().computePower(table, uidPower, procPower);
+
+        assertEquals(700, procPower[0], DELTA);
+        assertEquals(200, procPower[1], DELTA);
+        assertEquals(900, uidPower[app], DELTA);
+    }
+
+    public void testOtherComponents() {
+        final UidUsageTable table = new UidUsageTable(2);
+        final int app = table.addUid(10001, null);
+        final int other = table.addUid(10002, null);
+        table.wakeLockTime[app] = 2000;
+        table.wifiRunningTime[app] = 1000;
+        table.wifiScanTime[app] = 500;
+        table.tcpBytesReceived[app] = 3000;
+        table.tcpBytesSent[app] = 1000;
+        table.addSensor(other, Uid.Sensor.GPS, 1000);
+        table.addSensor(other, SENSOR_LIGHT, 10000);
+        table.addSensor(other, 42, 10000);
+
+        final double[] uidPower = new double[table.uidCount];
+        final double[] procPower = new double[table.procCount];
+        buildModel().computePower(table, uidPower, procPower);
+
+        // wake lock 100 + wifi 20 + scan 5 + data 4
+        assertEquals(129, uidPower[app], DELTA);
+        // gps 90 + light 2, unknown sensors are free
+        assertEquals(92, uidPower[other], DELTA);
+        assertEquals(1000, table.gpsTime[other]);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.TimeZone;
+
+@SmallTest
+public class DataUsageForecastTest extends AndroidTestCase {
+    // Thursday, 1 January 1970 is day zero; start on a Sunday.
+    private static final long START = 3 * DAY_IN_MILLIS;
+
+    private static NetworkStatsHistory buildHistory(long[] dailyBytes) {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < dailyBytes.length; i++) {
+            final long dayStart = START + i * DAY_IN_MILLIS;
+            entry.rxBytes = dailyBytes[i];
+            history.recordData(dayStart, dayStart + DAY_IN_MILLIS, entry);
+        }
+        return history;
+    }
+
+    public void testSteadyUsage() {
+        final long[] daily = new long[28];
+        for (int i = 0; i < daily.length; i++) {
+            daily[i] = 10 * MB_IN_BYTES;
+        }
+
+        final DataUsageForecast forecast = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        final long now = START + daily.length * DAY_IN_MILLIS;
+        forecast.fit(buildHistory(daily), now);
+
+        // seven more days of the same usage
+        final DataUsageForecast.Projection projection = forecast.project(
+                START, now + 7 * DAY_IN_MILLIS, now);
+        final long expected = 35 * 10 * MB_IN_BYTES;
+        assertTrue(Math.abs(projection.expected - expected) < MB_IN_BYTES);
+        assertTrue(projection.low <= projection.expected);
+        assertTrue(projection.high >= projection.expected);
+    }
+
+    public void testWeekendSeasonality() {
+        final long[] daily = new long[56];
+        for (int i = 0; i < daily.length; i++) {
+            // heavy use on Saturday and Sunday
+            final int weekday = i % 7;
+            daily[i] = (weekday == 0 || weekday == 6 ? 50 : 10) * MB_IN_BYTES;
+        }
+
+        final DataUsageForecast forecast = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        final long now = START + daily.length * DAY_IN_MILLIS;
+        forecast.fit(buildHistory(daily), now);
+
+        final DataUsageForecast.Projection sunday = forecast.project(
+                now, now + DAY_IN_MILLIS, now);
+        final DataUsageForecast.Projection monday = forecast.project(
+                now + DAY_IN_MILLIS, now + 2 * DAY_IN_MILLIS, now);
+        assertTrue(sunday.expected > 2 * monday.expected);
+    }
+
+    public void testIncrementalFit() {
+        final long[] daily = new long[14];
+        for (int i = 0; i < daily.length; i++) {
+            daily[i] = (i + 1) * MB_IN_BYTES;
+        }
+        final NetworkStatsHistory history = buildHistory(daily);
+        final long end = START + daily.length * DAY_IN_MILLIS;
+
+        final DataUsageForecast once = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        once.fit(history, end);
+
+        final DataUsageForecast stepped = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        for (long now = START; now <= end; now += DAY_IN_MILLIS) {
+            stepped.fit(history, now);
+        }
+
+        final long projectEnd = end + 7 * DAY_IN_MILLIS;
+        assertEquals(once.project(START, projectEnd, end).expected,
+                stepped.project(START, projectEnd, end).expected);
+    }
+
+    public void testReloadedHistoryKeepsFit() {
+        final long[] daily = new long[14];
+        for (int i = 0; i < daily.length; i++) {
+            daily[i] = (i + 1) * MB_IN_BYTES;
+        }
+        final long end = START + daily.length * DAY_IN_MILLIS;
+        final Object key = new Object();
+
+        final DataUsageForecast once = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        once.fit(buildHistory(daily), key, end);
+
+        // every reload brings a new history object covering one more day
+        final DataUsageForecast reloaded = new DataUsageForecast(TimeZone.getTimeZone("UTC"));
+        for (long now = START; now <= end; now += DAY_IN_MILLIS) {
+            reloaded.fit(buildHistory(daily), key, now);
+        }
+
+        final long projectEnd = end + 7 * DAY_IN_MILLIS;
+        assertEquals(once.project(START, projectEnd, end).expected,
+                reloaded.project(START, projectEnd, end).expected);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+@SmallTest
+public class NetworkStatsArchiveTest extends AndroidTestCase {
+    private static final long START = 10 * DAY_IN_MILLIS;
+    private static final long END = START + DAY_IN_MILLIS;
+
+    private static final int UID_APP = 10001;
+    private static final int UID_QUIET = 10002;
+
+    private static final NetworkTemplate TEMPLATE = NetworkTemplate.buildTemplateWifiWildcard();
+
+    /**
+     * Session returning canned history, with one bucket before the range,
+     * one inside and one after for each series that has traffic.
+     */
+    private static class FakeSession extends INetworkStatsSession.Stub {
+        final NetworkStatsHistory network = buildHistory(1000);
+        final NetworkStats summary = new NetworkStats(0, 8);
+        final HashMap<String, NetworkStatsHistory> uidHistory
+                = new HashMap<String, NetworkStatsHistory>();
+
+        void addUid(int uid, int set, long bytes) {
+            summary.addValues(new NetworkStats.Entry(
+                    null, uid, set, TAG_NONE, bytes, 1, bytes, 1, 0));
+            uidHistory.put(uid + ":" + set, bytes > 0
+                    ? buildHistory(bytes) : buildOutsideHistory());
+        }
+
+        @Override
+        public NetworkStats getSummaryForNetwork(NetworkTemplate template, long start, long end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields) {
+            return network;
+        }
+
+        @Override
+        public NetworkStats getSummaryForAllUid(
+                NetworkTemplate template, long start, long end, boolean includeTags) {
+            return summary;
+        }
+
+        @Override
+        public NetworkStatsHistory getHistoryForUid(
+                NetworkTemplate template, int uid, int set, int tag, int fields) {
+            return uidHistory.get(uid + ":" + set);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static NetworkStatsHistory buildHistory(long bytes) {
+        final NetworkStatsHistory history = buildOutsideHistory();
+        record(history, START + HOUR_IN_MILLIS, bytes);
+        return history;
+    }
+
+    /** History with traffic just before and just after the range only. */
+    private static NetworkStatsHistory buildOutsideHistory() {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        record(history, START - HOUR_IN_MILLIS, 7);
+        record(history, END, 11);
+        return history;
+    }
+
+    private static void record(NetworkStatsHistory history, long bucketStart, long bytes) {
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = bytes;
+        entry.txBytes = bytes * 2;
+        history.recordData(bucketStart, bucketStart + HOUR_IN_MILLIS, entry);
+    }
+
+    private static long getTotal(NetworkStatsHistory history) {
+        final NetworkStatsHistory.Entry entry = history.getValues(
+                Long.MIN_VALUE, Long.MAX_VALUE, null);
+        return entry.rxBytes + entry.txBytes;
+    }
+
+    private static NetworkStatsArchive roundTrip(FakeSession session) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkStatsArchive.write(session, TEMPLATE, START, END, out);
+        return NetworkStatsArchive.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testRoundTrip() throws Exception {
+        final FakeSession session = new FakeSession();
+        session.addUid(UID_APP, SET_DEFAULT, 100);
+        session.addUid(UID_APP, SET_FOREGROUND, 300);
+        session.addUid(UID_REMOVED, SET_DEFAULT, 500);
+        session.addUid(UID_TETHERING, SET_FOREGROUND, 700);
+        session.addUid(UID_QUIET, SET_DEFAULT, 0);
+
+        final NetworkStatsArchive archive = roundTrip(session);
+        assertEquals(START, archive.getStart());
+        assertEquals(END, archive.getEnd());
+
+        // buckets outside the range are dropped
+        assertEquals(3000, getTotal(archive.getNetworkHistory()));
+
+        final ChartData app = archive.buildChartData(new int[] { UID_APP });
+        assertEquals(300, getTotal(app.detailDefault));
+        assertEquals(900, getTotal(app.detailForeground));
+        assertEquals(1200, getTotal(app.detail));
+
+        final ChartData removed = archive.buildChartData(new int[] { UID_REMOVED });
+        assertEquals(1500, getTotal(removed.detailDefault));
+        assertEquals(0, getTotal(removed.detailForeground));
+
+        final ChartData tethering = archive.buildChartData(new int[] { UID_TETHERING });
+        assertEquals(0, getTotal(tethering.detailDefault));
+        assertEquals(2100, getTotal(tethering.detailForeground));
+
+        final ChartData quiet = archive.buildChartData(new int[] { UID_QUIET });
+        assertEquals(0, getTotal(quiet.detail));
+
+        final ChartData combined = archive.buildChartData(
+                new int[] { UID_APP, UID_REMOVED, UID_TETHERING });
+        assertEquals(4800, getTotal(combined.detail));
+
+        assertNull(archive.buildChartData(null).detail);
+    }
+
+    public void testRoundTripEmpty() throws Exception {
+        final FakeSession session = new FakeSession();
+        session.network.removeBucketsBefore(Long.MAX_VALUE);
+
+        final NetworkStatsArchive archive = roundTrip(session);
+        assertEquals(0, archive.getNetworkHistory().size());
+        assertEquals(0, getTotal(archive.buildChartData(new int[] { UID_APP }).detail));
+    }
+
+    public void testTruncated() throws Exception {
+        final FakeSession session = new FakeSession();
+        session.addUid(UID_APP, SET_DEFAULT, 100);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkStatsArchive.write(session, TEMPLATE, START, END, out);
+        final byte[] data = out.toByteArray();
+
+        for (int length = 0; length < data.length; length++) {
+            try {
+                NetworkStatsArchive.read(
+                        new ByteArrayInputStream(Arrays.copyOf(data, length)));
+                fail("read " + length + " of " + data.length + " bytes");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testImplausibleBucketCount() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x4e534841);
+        out.writeInt(1);
+        writeVarLong(out, START);
+        writeVarLong(out, END);
+        writeVarLong(out, HOUR_IN_MILLIS);
+        out.writeByte(1); // network series
+        writeVarLong(out, HOUR_IN_MILLIS);
+        writeVarLong(out, Integer.MAX_VALUE);
+        out.flush();
+
+        try {
+            NetworkStatsArchive.read(new ByteArrayInputStream(bytes.toByteArray()));
+            fail("read a series with " + Integer.MAX_VALUE + " buckets");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}